@@ -5,9 +5,16 @@ import il.ac.technion.cs.sd.app.chat.IMessage;
 import il.ac.technion.cs.sd.app.chat.IMessageHandler;
 import il.ac.technion.cs.sd.app.chat.LogoutRequestMessage;
 
+import il.ac.technion.cs.sd.lib.clientserver.CommunicationFailure;
+import il.ac.technion.cs.sd.lib.clientserver.SharedConnection;
+
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 /**
@@ -44,36 +51,19 @@ public class Client implements IMessageHandler {
 	private Consumer<RoomAnnouncement> announcementConsumer;
 
 	/**
-	 * A blocking queue we use to wait for a response from the server when it
-	 * needs to send us a response on a <i>myOnlineRooms</i> query
+	 * The id to give the next request. Shared by all of the clients, so a late
+	 * reply to a request sent before logging in again can't be taken for the
+	 * reply to a new one.
 	 */
-	private BlockingQueue<MyOnlineRoomsReply> myOnlineRoomsQueue;
+	private static final AtomicLong nextRequestId = new AtomicLong();
 
 	/**
-	 * A blocking queue we use to wait for a response from the server when it
-	 * needs to send us a response on an <i>allRooms</i> query
+	 * The requests waiting for their replies: the request's id -> a future
+	 * completed with the reply. Any number of requests may be waiting at the
+	 * same time, and their replies may arrive in any order.
 	 */
-	private BlockingQueue<AllRoomsReply> allRoomsQueue;
-
-	/**
-	 * A blocking queue we use to wait for a response from the server when it
-	 * needs to send us a response on an <i>clientsInRoom</i> query
-	 */
-	private BlockingQueue<ClientsInRoomReply> clientsInRoomQueue;
-
-	/**
-	 * A blocking queue we use to wait for a response from the server when it
-	 * needs to send us a response on an <i>leaveRoom</i> query
-	 */
-	private BlockingQueue<LeaveRoomReply> leaveRoomQueue;
-
-	/**
-	 * A blocking queue we use to wait for a response from the server when it
-	 * needs to send us a response on an <i>joinRoom</i> query
-	 */
-	private BlockingQueue<JoinRoomReply> joinRoomQueue;
-
-	private BlockingQueue<OurChatMessageReply> chatMessaeReplyQueue;
+	private final Map<Long, CompletableFuture<IMessage>> pendingReplies =
+			new ConcurrentHashMap<>();
 
 	/**
 	 * Creates a new client, starts the connection with the server, and
@@ -94,20 +84,49 @@ public class Client implements IMessageHandler {
 	public Client(String myAddress, String serverAddress,
 			Consumer<ChatMessage> messageConsumer,
 			Consumer<RoomAnnouncement> announcementConsumer) {
+		this(myAddress, serverAddress, messageConsumer, announcementConsumer,
+				null, false);
+	}
+
+	/**
+	 * Creates a new client, whose messages are carried by a connection shared
+	 * with other clients (or by a connection of its own, if 'connection' is
+	 * null), starts the connection with the server, and retrieves all of the
+	 * unread messages that the client got when he was not logged in.
+	 * 
+	 * @param myAddress
+	 *            the client's address
+	 * @param serverAddress
+	 *            the server's address
+	 * @param messageConsumer
+	 *            The consumer of chat messages
+	 * @param announcementConsumer
+	 *            The consumer of room announcements
+	 * @param connection
+	 *            A started connection encoding messages with
+	 *            {@link MessageCodecs#BINARY}, or null
+	 * @param sharedListening
+	 *            whether the client's own connection handles the messages on
+	 *            the threads shared by all clients (the consumers must then
+	 *            return quickly). Ignored when 'connection' isn't null.
+	 */
+	public Client(String myAddress, String serverAddress,
+			Consumer<ChatMessage> messageConsumer,
+			Consumer<RoomAnnouncement> announcementConsumer,
+			SharedConnection connection, boolean sharedListening) {
 		this.username = myAddress;
 		this.serverAddress = serverAddress;
 		this.messageConsumer = messageConsumer;
 		this.announcementConsumer = announcementConsumer;
 
-		this.clientsInRoomQueue = new LinkedBlockingDeque<>();
-		this.allRoomsQueue = new LinkedBlockingDeque<>();
-		this.myOnlineRoomsQueue = new LinkedBlockingDeque<>();
-		this.joinRoomQueue = new LinkedBlockingDeque<>();
-		this.leaveRoomQueue = new LinkedBlockingDeque<>();
-		this.chatMessaeReplyQueue = new LinkedBlockingDeque<>();
-
-		communicator = new il.ac.technion.cs.sd.lib.clientserver.Client(
-				myAddress);
+		if (connection != null) {
+			communicator = new il.ac.technion.cs.sd.lib.clientserver.Client(
+					myAddress, connection);
+		} else {
+			communicator = new il.ac.technion.cs.sd.lib.clientserver.Client(
+					myAddress, MessageCodecs.BINARY);
+			communicator.setSharedListening(sharedListening);
+		}
 		communicator.start(serverAddress, new Consumer<Object>() {
 
 			@Override
@@ -132,6 +151,12 @@ public class Client implements IMessageHandler {
 		// sending a request
 		send(new LogoutRequestMessage(username));
 		communicator.stopListenLoop();
+
+		for (CompletableFuture<IMessage> reply : pendingReplies.values()) {
+			reply.completeExceptionally(new CommunicationFailure(
+					"logged out before the reply arrived"));
+		}
+		pendingReplies.clear();
 	}
 
 	/**
@@ -144,103 +169,132 @@ public class Client implements IMessageHandler {
 		communicator.send(message);
 	}
 
-	@Override
-	public void handle(OurChatMessage message) {
-		messageConsumer.accept(new ChatMessage(message.who, message.room,
-				message.content));
-	}
-
-	@Override
-	public void handle(OurChatMessageReply message) {
-		try {
-			chatMessaeReplyQueue.put(message);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	/**
+	 * Sends a request to the server, with an id its reply is told apart by.
+	 * 
+	 * @param request
+	 *            the request to send
+	 * @param type
+	 *            the type of the reply
+	 * @return a future completed with the reply (or failed, if the client
+	 *         was stopped or the request couldn't be sent)
+	 */
+	private <T extends IMessage> CompletableFuture<T> request(
+			IMessage request, Class<T> type) {
+		long id = nextRequestId.getAndIncrement();
+		CompletableFuture<IMessage> reply = new CompletableFuture<>();
+		pendingReplies.put(id, reply);
+		// stop() fails the requests waiting when it is called, so one made
+		// meanwhile has to fail by itself.
+		if (communicator.isCommunicatorStopped()) {
+			pendingReplies.remove(id);
+			reply.completeExceptionally(new CommunicationFailure(
+					"logged out before the request was sent"));
+		} else {
+			try {
+				send(new CorrelatedRequest(username, id, request));
+			} catch (RuntimeException e) {
+				pendingReplies.remove(id);
+				reply.completeExceptionally(e);
+			}
 		}
+		return reply.thenApply(type::cast);
 	}
 
-	@Override
-	public void handle(OurRoomAnnouncement message) {
-		announcementConsumer.accept(new RoomAnnouncement(message.who,
-				message.room, message.type));
-	}
-
-	@Override
-	public void handle(MyOnlineRoomsReply message) {
+	/**
+	 * Waits for a future to complete. Being interrupted doesn't stop the
+	 * wait, but the thread is interrupted again once it ends.
+	 * 
+	 * @param future
+	 *            the future to wait for
+	 * @param failure
+	 *            the type of the exception the future may fail with
+	 * @return the value of the future
+	 * @throws E
+	 *             if the future failed with it
+	 */
+	private static <T, E extends Exception> T await(
+			CompletableFuture<T> future, Class<E> failure) throws E {
+		boolean interrupted = false;
 		try {
-			myOnlineRoomsQueue.put(message);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (failure.isInstance(cause)) {
+						throw failure.cast(cause);
+					}
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw new RuntimeException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
 		}
 	}
 
 	@Override
-	public void handle(JoinRoomReply message) {
-		try {
-			joinRoomQueue.put(message);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+	public void handle(CorrelatedReply message) {
+		CompletableFuture<IMessage> reply = pendingReplies.remove(message.id);
+		if (reply == null) {
+			return;
 		}
-	}
-
-	@Override
-	public void handle(LeaveRoomReply message) {
-		try {
-			leaveRoomQueue.put(message);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		if (message.reply == null) {
+			reply.completeExceptionally(new IllegalStateException(
+					"the server failed handling the request"));
+		} else {
+			reply.complete(message.reply);
 		}
 	}
 
 	@Override
-	public void handle(AllRoomsReply message) {
-		try {
-			allRoomsQueue.put(message);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	public void handle(OurChatMessage message) {
+		messageConsumer.accept(new ChatMessage(message.who, message.room,
+				message.content));
 	}
 
 	@Override
-	public void handle(ClientsInRoomReply message) {
-		try {
-			clientsInRoomQueue.put(message);
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
+	public void handle(OurRoomAnnouncement message) {
+		announcementConsumer.accept(new RoomAnnouncement(message.who,
+				message.room, message.type));
 	}
 
 	/**
 	 * @return All the rooms the client joined
 	 */
 	public List<String> getJoinedRooms() {
-		// sending a request
-		send(new MyOnlineRoomsRequest(username));
+		return await(getJoinedRoomsAsync(), RuntimeException.class);
+	}
 
-		// waiting for a response
-		while (true) {
-			try {
-				return myOnlineRoomsQueue.take().myRooms;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * @return a future completed with all the rooms the client joined
+	 */
+	public CompletableFuture<List<String>> getJoinedRoomsAsync() {
+		return request(new MyOnlineRoomsRequest(username),
+				MyOnlineRoomsReply.class).thenApply(reply -> reply.myRooms);
 	}
 
 	/**
 	 * @return all rooms that have clients currently online, i.e., logged in
 	 */
 	public List<String> getAllRooms() {
-		send(new AllRoomsRequest(username));
+		return await(getAllRoomsAsync(), RuntimeException.class);
+	}
 
-		// waiting for a response
-		while (true) {
-			try {
-				return allRoomsQueue.take().allRooms;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * @return a future completed with all rooms that have clients currently
+	 *         online
+	 */
+	public CompletableFuture<List<String>> getAllRoomsAsync() {
+		return request(new AllRoomsRequest(username), AllRoomsReply.class)
+				.thenApply(reply -> reply.allRooms);
 	}
 
 	/**
@@ -256,20 +310,68 @@ public class Client implements IMessageHandler {
 	 */
 	public List<String> getClientsInRoom(String room)
 			throws NoSuchRoomException {
-		send(new ClientsInRoomRequest(username, room));
+		return await(getClientsInRoomAsync(room), NoSuchRoomException.class);
+	}
 
-		// waiting for a response
-		while (true) {
-			try {
-				List<String> clients = clientsInRoomQueue.take().clientsInRoom;
-				if (clients.size() == 0) {
-					throw new NoSuchRoomException();
-				}
-				return clients;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	/**
+	 * Like {@link #getClientsInRoom(String)}, without waiting for the reply.
+	 * 
+	 * @param room
+	 *            The room to check
+	 * @return a future completed with the online clients in the room, or
+	 *         failed with NoSuchRoomException
+	 */
+	public CompletableFuture<List<String>> getClientsInRoomAsync(String room) {
+		return request(new ClientsInRoomRequest(username, room),
+				ClientsInRoomReply.class).thenCompose(reply -> {
+			if (reply.clientsInRoom.size() == 0) {
+				return failed(new NoSuchRoomException());
 			}
-		}
+			return CompletableFuture.completedFuture(reply.clientsInRoom);
+		});
+	}
+
+	/**
+	 * Gets a page of the chat messages sent to a room.
+	 * 
+	 * @param room
+	 *            The room whose messages to get
+	 * @param before
+	 *            {@link RoomHistoryRequest#LATEST}, or the cursor of a
+	 *            previous page
+	 * @param limit
+	 *            The maximal number of messages in the page
+	 * @return The last messages sent before the cursor
+	 * @throws NotInRoomException
+	 *             If the client isn't currently in the room
+	 */
+	public HistoryPage getRoomHistory(String room, long before, int limit)
+			throws NotInRoomException {
+		return await(getRoomHistoryAsync(room, before, limit),
+				NotInRoomException.class);
+	}
+
+	/**
+	 * Like {@link #getRoomHistory(String, long, int)}, without waiting for the
+	 * reply.
+	 * 
+	 * @return a future completed with the page, or failed with
+	 *         NotInRoomException
+	 */
+	public CompletableFuture<HistoryPage> getRoomHistoryAsync(String room,
+			long before, int limit) {
+		return request(new RoomHistoryRequest(username, room, before, limit),
+				RoomHistoryReply.class).thenCompose(reply -> {
+			if (reply.error == ErrorCode.NotInRoomException) {
+				return failed(new NotInRoomException());
+			}
+			List<ChatMessage> messages = new ArrayList<>();
+			for (OurChatMessage m : reply.messages) {
+				messages.add(new ChatMessage(m.who, m.room, m.content));
+			}
+			return CompletableFuture.completedFuture(new HistoryPage(messages,
+					reply.before));
+		});
 	}
 
 	/**
@@ -282,19 +384,23 @@ public class Client implements IMessageHandler {
 	 *             If the client isn't currently in the room
 	 */
 	public void leaveRoom(String room) throws NotInRoomException {
-		send(new LeaveRoomRequest(username, room));
+		await(leaveRoomAsync(room), NotInRoomException.class);
+	}
 
-		// waiting for a response
-		while (true) {
-			try {
-				if (leaveRoomQueue.take().error == ErrorCode.NotInRoomException)
-					throw new NotInRoomException();
-				return;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	/**
+	 * Like {@link #leaveRoom(String)}, without waiting for the reply.
+	 * 
+	 * @return a future completed once the room was left, or failed with
+	 *         NotInRoomException
+	 */
+	public CompletableFuture<Void> leaveRoomAsync(String room) {
+		return request(new LeaveRoomRequest(username, room),
+				LeaveRoomReply.class).thenCompose(reply -> {
+			if (reply.error == ErrorCode.NotInRoomException) {
+				return failed(new NotInRoomException());
 			}
-		}
-
+			return CompletableFuture.completedFuture(null);
+		});
 	}
 
 	/**
@@ -307,18 +413,23 @@ public class Client implements IMessageHandler {
 	 *             If the client isn't currently in the room
 	 */
 	public void joinRoom(String room) throws AlreadyInRoomException {
-		send(new JoinRoomRequest(username, room));
+		await(joinRoomAsync(room), AlreadyInRoomException.class);
+	}
 
-		// waiting for a response
-		while (true) {
-			try {
-				if (joinRoomQueue.take().error == ErrorCode.AlreadyInRoomException)
-					throw new AlreadyInRoomException();
-				return;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	/**
+	 * Like {@link #joinRoom(String)}, without waiting for the reply.
+	 * 
+	 * @return a future completed once the room was joined, or failed with
+	 *         AlreadyInRoomException
+	 */
+	public CompletableFuture<Void> joinRoomAsync(String room) {
+		return request(new JoinRoomRequest(username, room),
+				JoinRoomReply.class).thenCompose(reply -> {
+			if (reply.error == ErrorCode.AlreadyInRoomException) {
+				return failed(new AlreadyInRoomException());
 			}
-		}
+			return CompletableFuture.completedFuture(null);
+		});
 	}
 
 	/**
@@ -341,18 +452,33 @@ public class Client implements IMessageHandler {
 	 *             If the client isn't currently in the room
 	 */
 	public void sendMessage(String room, String what) throws NotInRoomException {
-		send(new OurChatMessage(username, room, what));
+		await(sendMessageAsync(room, what), NotInRoomException.class);
+	}
 
-		// waiting for a response
-		while (true) {
-			try {
-				if (chatMessaeReplyQueue.take().error == ErrorCode.NotInRoomException)
-					throw new NotInRoomException();
-				return;
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+	/**
+	 * Like {@link #sendMessage(String, String)}, without waiting for the
+	 * reply.
+	 * 
+	 * @return a future completed once the message was sent to the room, or
+	 *         failed with NotInRoomException
+	 */
+	public CompletableFuture<Void> sendMessageAsync(String room, String what) {
+		return request(new OurChatMessage(username, room, what),
+				OurChatMessageReply.class).thenCompose(reply -> {
+			if (reply.error == ErrorCode.NotInRoomException) {
+				return failed(new NotInRoomException());
 			}
-		}
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/**
+	 * @return a future failed with an exception
+	 */
+	private static <T> CompletableFuture<T> failed(Exception e) {
+		CompletableFuture<T> $ = new CompletableFuture<>();
+		$.completeExceptionally(e);
+		return $;
 	}
 
 }
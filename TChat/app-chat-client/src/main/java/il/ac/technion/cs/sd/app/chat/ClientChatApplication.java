@@ -1,6 +1,9 @@
 package il.ac.technion.cs.sd.app.chat;
 
+import il.ac.technion.cs.sd.lib.clientserver.SharedConnection;
+
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
@@ -14,6 +17,18 @@ public class ClientChatApplication {
 	private final String serverAddress;
 	private final String username;
 
+	/**
+	 * The connection carrying the messages of this user, shared with other
+	 * users (null if the user has a connection of its own)
+	 */
+	private final SharedConnection connection;
+
+	/**
+	 * Whether the messages of the user are handled on the threads shared by
+	 * all clients (see the constructor)
+	 */
+	private final boolean sharedListening;
+
 	/**
 	 * Creates a new application, tied to a single user
 	 * 
@@ -25,8 +40,60 @@ public class ClientChatApplication {
 	 *            using this object
 	 */
 	public ClientChatApplication(String serverAddress, String username) {
+		this(serverAddress, username, null, false);
+	}
+
+	/**
+	 * Creates a new application, tied to a single user, whose incoming
+	 * messages may be handled on a small pool of threads shared by all of the
+	 * clients in the process, instead of on a thread of its own, so a process
+	 * can run very many users. The consumers given to
+	 * {@link #login(Consumer, Consumer)} must then return quickly: while one
+	 * of them runs, messages to other users may wait for its thread.
+	 * 
+	 * @param serverAddress
+	 *            The address of the server to connect to for sending and
+	 *            receiving messages
+	 * @param username
+	 *            The username that will be sending and accepting the messages
+	 *            using this object
+	 * @param sharedListening
+	 *            Whether to handle the user's messages on the shared threads
+	 */
+	public ClientChatApplication(String serverAddress, String username,
+			boolean sharedListening) {
+		this(serverAddress, username, null, sharedListening);
+	}
+
+	/**
+	 * Creates a new application, tied to a single user, whose messages are
+	 * carried by a connection shared with other users (e.g., those of a
+	 * gateway or of a bot). The server sees each user of the connection as a
+	 * separate client.
+	 * 
+	 * @param serverAddress
+	 *            The address of the server to connect to for sending and
+	 *            receiving messages
+	 * @param username
+	 *            The username that will be sending and accepting the messages
+	 *            using this object
+	 * @param connection
+	 *            A connection encoding messages with
+	 *            {@link MessageCodecs#BINARY}, started before logging in.
+	 *            The messages of all of its users are handled on its single
+	 *            thread, so their consumers must return quickly.
+	 */
+	public ClientChatApplication(String serverAddress, String username,
+			SharedConnection connection) {
+		this(serverAddress, username, connection, false);
+	}
+
+	private ClientChatApplication(String serverAddress, String username,
+			SharedConnection connection, boolean sharedListening) {
 		this.serverAddress = serverAddress;
 		this.username = username;
+		this.connection = connection;
+		this.sharedListening = sharedListening;
 	}
 
 	/**
@@ -42,11 +109,17 @@ public class ClientChatApplication {
 	 * @param announcementConsumer
 	 *            The consumer of room announcements (See
 	 *            {@link RoomAnnouncement.Announcement})
+	 *            <p>
+	 *            The consumers are called one at a time, on the thread
+	 *            handling the user's incoming messages; while they run, no
+	 *            other message of the user is handled. If that thread is
+	 *            shared with other users (see the constructors), they must
+	 *            not block.
 	 */
 	public void login(Consumer<ChatMessage> chatMessageConsumer,
 			Consumer<RoomAnnouncement> announcementConsumer) {
 		client = new Client(username, serverAddress, chatMessageConsumer,
-				announcementConsumer);
+				announcementConsumer, connection, sharedListening);
 	}
 
 	/**
@@ -62,6 +135,20 @@ public class ClientChatApplication {
 		client.joinRoom(room);
 	}
 
+	/**
+	 * Like {@link #joinRoom(String)}, without waiting for the server's reply.
+	 * Any number of operations may be waiting for their replies at the same
+	 * time.
+	 * 
+	 * @param room
+	 *            The room to join
+	 * @return A future completed once the room was joined, or failed with
+	 *         AlreadyInRoomException
+	 */
+	public CompletableFuture<Void> joinRoomAsync(String room) {
+		return client.joinRoomAsync(room);
+	}
+
 	/**
 	 * Leaves the room. All the <i>other</i> clients in the room will receive a
 	 * message.
@@ -75,6 +162,18 @@ public class ClientChatApplication {
 		client.leaveRoom(room);
 	}
 
+	/**
+	 * Like {@link #leaveRoom(String)}, without waiting for the server's reply.
+	 * 
+	 * @param room
+	 *            The room to leave
+	 * @return A future completed once the room was left, or failed with
+	 *         NotInRoomException
+	 */
+	public CompletableFuture<Void> leaveRoomAsync(String room) {
+		return client.leaveRoomAsync(room);
+	}
+
 	/**
 	 * Logs the user out of chat application. A logged out client cannot perform
 	 * any tasks other than logging in. A logged out message will be sent to all
@@ -98,6 +197,22 @@ public class ClientChatApplication {
 		client.sendMessage(room, what);
 	}
 
+	/**
+	 * Like {@link #sendMessage(String, String)}, without waiting for the
+	 * server's reply. Messages sent to the same room reach it in the order
+	 * they were sent.
+	 * 
+	 * @param room
+	 *            The room to broadcast the message to.
+	 * @param what
+	 *            The message to broadcast.
+	 * @return A future completed once the message was broadcast, or failed
+	 *         with NotInRoomException
+	 */
+	public CompletableFuture<Void> sendMessageAsync(String room, String what) {
+		return client.sendMessageAsync(room, what);
+	}
+
 	/**
 	 * @return All the rooms the client joined
 	 */
@@ -105,6 +220,13 @@ public class ClientChatApplication {
 		return client.getJoinedRooms();
 	}
 
+	/**
+	 * @return A future completed with all the rooms the client joined
+	 */
+	public CompletableFuture<List<String>> getJoinedRoomsAsync() {
+		return client.getJoinedRoomsAsync();
+	}
+
 	/**
 	 * @return all rooms that have clients currently online, i.e., logged in
 	 */
@@ -112,6 +234,14 @@ public class ClientChatApplication {
 		return client.getAllRooms();
 	}
 
+	/**
+	 * @return A future completed with all rooms that have clients currently
+	 *         online
+	 */
+	public CompletableFuture<List<String>> getAllRoomsAsync() {
+		return client.getAllRoomsAsync();
+	}
+
 	/**
 	 * Gets all the clients that joined the room and are currently logged in. A
 	 * client does not have to be in a room to get a list of its clients.
@@ -128,6 +258,59 @@ public class ClientChatApplication {
 		return client.getClientsInRoom(room);
 	}
 
+	/**
+	 * Like {@link #getClientsInRoom(String)}, without waiting for the server's
+	 * reply.
+	 * 
+	 * @param room
+	 *            The room to check
+	 * @return A future completed with the online clients in the room, or
+	 *         failed with NoSuchRoomException
+	 */
+	public CompletableFuture<List<String>> getClientsInRoomAsync(String room) {
+		return client.getClientsInRoomAsync(room);
+	}
+
+	/**
+	 * Gets a page of the chat messages sent to a room, oldest first. The
+	 * latest page is gotten with {@link RoomHistoryRequest#LATEST}, and each
+	 * page before it with {@link HistoryPage#before} of the page after it,
+	 * until {@link HistoryPage#hasMore()} is false.
+	 * 
+	 * @param room
+	 *            The room whose messages to get
+	 * @param before
+	 *            The cursor before which the messages of the page were sent
+	 * @param limit
+	 *            The maximal number of messages in the page (the server may
+	 *            return less)
+	 * @return The page of messages
+	 * @throws NotInRoomException
+	 *             If the client isn't currently in the room
+	 */
+	public HistoryPage getRoomHistory(String room, long before, int limit)
+			throws NotInRoomException {
+		return client.getRoomHistory(room, before, limit);
+	}
+
+	/**
+	 * Like {@link #getRoomHistory(String, long, int)}, without waiting for the
+	 * server's reply.
+	 * 
+	 * @param room
+	 *            The room whose messages to get
+	 * @param before
+	 *            The cursor before which the messages of the page were sent
+	 * @param limit
+	 *            The maximal number of messages in the page
+	 * @return A future completed with the page, or failed with
+	 *         NotInRoomException
+	 */
+	public CompletableFuture<HistoryPage> getRoomHistoryAsync(String room,
+			long before, int limit) {
+		return client.getRoomHistoryAsync(room, before, limit);
+	}
+
 	/**
 	 * Stops the client, freeing up any resources used. You can assume that
 	 * {@link ClientChatApplication#logout()} was called before this method if
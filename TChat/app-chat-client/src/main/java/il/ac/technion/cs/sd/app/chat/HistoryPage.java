@@ -0,0 +1,33 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import java.util.List;
+
+/**
+ * A page of the chat messages sent to a room (See
+ * {@link ClientChatApplication#getRoomHistory(String, long, int)}).
+ */
+public class HistoryPage {
+
+	/**
+	 * The messages of the page, oldest first.
+	 */
+	public final List<ChatMessage> messages;
+
+	/**
+	 * The cursor with which to get the page before this one.
+	 */
+	public final long before;
+
+	public HistoryPage(List<ChatMessage> messages, long before) {
+		this.messages = messages;
+		this.before = before;
+	}
+
+	/**
+	 * @return true iff there are messages older than this page.
+	 */
+	public boolean hasMore() {
+		return before != RoomHistoryReply.NO_MORE;
+	}
+
+}
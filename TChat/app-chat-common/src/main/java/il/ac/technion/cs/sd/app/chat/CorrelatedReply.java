@@ -0,0 +1,22 @@
+package il.ac.technion.cs.sd.app.chat;
+
+/**
+ * The reply to a CorrelatedRequest, with the request's id. Its reply is null
+ * if the server failed handling the request.
+ */
+public class CorrelatedReply implements IMessage {
+
+	public final long id;
+	public final IMessage reply;
+
+	public CorrelatedReply(long id, IMessage reply) {
+		this.id = id;
+		this.reply = reply;
+	}
+
+	@Override
+	public void handle(IMessageHandler messageHandler) {
+		messageHandler.handle(this);
+	}
+
+}
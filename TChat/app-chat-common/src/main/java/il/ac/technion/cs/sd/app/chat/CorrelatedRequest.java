@@ -0,0 +1,25 @@
+package il.ac.technion.cs.sd.app.chat;
+
+/**
+ * A request sent with an id, so its reply can be told apart from the replies
+ * to other requests the client is waiting for. The server replies to it with a
+ * CorrelatedReply with the same id.
+ */
+public class CorrelatedRequest implements IMessage {
+
+	public final String who;
+	public final long id;
+	public final IMessage request;
+
+	public CorrelatedRequest(String who, long id, IMessage request) {
+		this.who = who;
+		this.id = id;
+		this.request = request;
+	}
+
+	@Override
+	public void handle(IMessageHandler messageHandler) {
+		messageHandler.handle(this);
+	}
+
+}
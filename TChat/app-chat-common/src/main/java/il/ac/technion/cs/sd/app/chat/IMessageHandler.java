@@ -172,6 +172,63 @@ public interface IMessageHandler {
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * Defines behavior for a RoomHistoryRequest. Default implementation is:
+	 * <i>throw new UnsupportedOperationException();</i>
+	 * 
+	 * @param messageHandler
+	 *            the message to handle
+	 */
+	default public void handle(RoomHistoryRequest message) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Defines behavior for a RoomHistoryReply. Default implementation is:
+	 * <i>throw new UnsupportedOperationException();</i>
+	 * 
+	 * @param messageHandler
+	 *            the message to handle
+	 */
+	default public void handle(RoomHistoryReply message) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Defines behavior for a CorrelatedRequest. Default implementation is:
+	 * <i>throw new UnsupportedOperationException();</i>
+	 * 
+	 * @param messageHandler
+	 *            the message to handle
+	 */
+	default public void handle(CorrelatedRequest message) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Defines behavior for a CorrelatedReply. Default implementation is:
+	 * <i>throw new UnsupportedOperationException();</i>
+	 * 
+	 * @param messageHandler
+	 *            the message to handle
+	 */
+	default public void handle(CorrelatedReply message) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Defines behavior for a MessageBatch. Default implementation is: handling
+	 * each of the batched messages, in order.
+	 * 
+	 * @param messageHandler
+	 *            the message to handle
+	 */
+	default public void handle(MessageBatch message) {
+		for (IMessage m : message.messages) {
+			m.handle(this);
+		}
+	}
+
 	/**
 	 * Defines behavior for a IMessage. Default implementation is: <i>throw new
 	 * UnsupportedOperationException();</i> Good practice would be
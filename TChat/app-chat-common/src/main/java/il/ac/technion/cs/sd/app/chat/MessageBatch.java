@@ -0,0 +1,22 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import java.util.List;
+
+/**
+ * Several messages to the same recipient, sent together as a single message.
+ * The recipient handles them one by one, in order.
+ */
+public class MessageBatch implements IMessage {
+
+	public final List<IMessage> messages;
+
+	public MessageBatch(List<IMessage> messages) {
+		this.messages = messages;
+	}
+
+	@Override
+	public void handle(IMessageHandler messageHandler) {
+		messageHandler.handle(this);
+	}
+
+}
@@ -0,0 +1,176 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import il.ac.technion.cs.sd.app.chat.RoomAnnouncement.Announcement;
+import il.ac.technion.cs.sd.lib.clientserver.BinaryCodec;
+import il.ac.technion.cs.sd.lib.clientserver.Codec;
+import il.ac.technion.cs.sd.lib.clientserver.XStreamCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The codecs with which the client and the server send each other IMessages. Each codec is 
+ * created (and all message types are registered with it) once, and shared by all clients and 
+ * servers in the process. The client and the server must use the same codec.
+ */
+public class MessageCodecs {
+
+	/**
+	 * XStream XML, with all message types aliased by their simple names.
+	 */
+	public static final Codec XML = new XStreamCodec(
+			AllRoomsReply.class,
+			AllRoomsRequest.class,
+			ClientsInRoomReply.class,
+			ClientsInRoomRequest.class,
+			CorrelatedReply.class,
+			CorrelatedRequest.class,
+			JoinRoomReply.class,
+			JoinRoomRequest.class,
+			LeaveRoomReply.class,
+			LeaveRoomRequest.class,
+			LoginRequestMessage.class,
+			LogoutRequestMessage.class,
+			MessageBatch.class,
+			MyOnlineRoomsReply.class,
+			MyOnlineRoomsRequest.class,
+			OurChatMessage.class,
+			OurChatMessageReply.class,
+			OurRoomAnnouncement.class,
+			RoomHistoryReply.class,
+			RoomHistoryRequest.class);
+
+	/**
+	 * A compact binary format, in which every message type has its own tag.
+	 * Tags must never be reused for another type (or the field order of a type changed), since
+	 * clients and servers of different versions would misread each other.
+	 */
+	public static final Codec BINARY = new BinaryCodec()
+			.register(16, AllRoomsReply.class,
+					(m, out) -> out.writeStringList(m.allRooms),
+					in -> new AllRoomsReply(in.readStringList()))
+			.register(17, AllRoomsRequest.class,
+					(m, out) -> out.writeString(m.who),
+					in -> new AllRoomsRequest(in.readString()))
+			.register(18, ClientsInRoomReply.class,
+					(m, out) -> {
+						out.writeString(m.room);
+						out.writeStringList(m.clientsInRoom);
+					},
+					in -> new ClientsInRoomReply(in.readString(), in.readStringList()))
+			.register(19, ClientsInRoomRequest.class,
+					(m, out) -> {
+						out.writeString(m.who);
+						out.writeString(m.room);
+					},
+					in -> new ClientsInRoomRequest(in.readString(), in.readString()))
+			.register(20, JoinRoomReply.class,
+					(m, out) -> out.writeEnum(m.error),
+					in -> new JoinRoomReply(in.readEnum(ErrorCode.values())))
+			.register(21, JoinRoomRequest.class,
+					(m, out) -> {
+						out.writeString(m.who);
+						out.writeString(m.room);
+					},
+					in -> new JoinRoomRequest(in.readString(), in.readString()))
+			.register(22, LeaveRoomReply.class,
+					(m, out) -> out.writeEnum(m.error),
+					in -> new LeaveRoomReply(in.readEnum(ErrorCode.values())))
+			.register(23, LeaveRoomRequest.class,
+					(m, out) -> {
+						out.writeString(m.who);
+						out.writeString(m.room);
+					},
+					in -> new LeaveRoomRequest(in.readString(), in.readString()))
+			.register(24, LoginRequestMessage.class,
+					(m, out) -> out.writeString(m.who),
+					in -> new LoginRequestMessage(in.readString()))
+			.register(25, LogoutRequestMessage.class,
+					(m, out) -> out.writeString(m.who),
+					in -> new LogoutRequestMessage(in.readString()))
+			.register(26, MyOnlineRoomsReply.class,
+					(m, out) -> out.writeStringList(m.myRooms),
+					in -> new MyOnlineRoomsReply(in.readStringList()))
+			.register(27, MyOnlineRoomsRequest.class,
+					(m, out) -> out.writeString(m.who),
+					in -> new MyOnlineRoomsRequest(in.readString()))
+			.register(28, OurChatMessage.class,
+					(m, out) -> {
+						out.writeString(m.who);
+						out.writeString(m.room);
+						out.writeString(m.content);
+					},
+					in -> new OurChatMessage(in.readString(), in.readString(), in.readString()))
+			.register(29, OurChatMessageReply.class,
+					(m, out) -> out.writeEnum(m.error),
+					in -> new OurChatMessageReply(in.readEnum(ErrorCode.values())))
+			.register(30, OurRoomAnnouncement.class,
+					(m, out) -> {
+						out.writeString(m.who);
+						out.writeString(m.room);
+						out.writeEnum(m.type);
+					},
+					in -> new OurRoomAnnouncement(in.readString(), in.readString(), 
+							in.readEnum(Announcement.values())))
+			.register(31, MessageBatch.class,
+					(m, out) -> {
+						out.writeVarInt(m.messages.size());
+						for (IMessage message : m.messages) {
+							out.writeObject(message);
+						}
+					},
+					in -> {
+						int size = in.readVarInt();
+						List<IMessage> messages = new ArrayList<>(Math.min(size,
+								in.remaining()));
+						for (int i = 0; i < size; i++) {
+							messages.add((IMessage) in.readObject());
+						}
+						return new MessageBatch(messages);
+					})
+			.register(32, RoomHistoryRequest.class,
+					(m, out) -> {
+						out.writeString(m.who);
+						out.writeString(m.room);
+						out.writeLong(m.before);
+						out.writeVarInt(m.limit);
+					},
+					in -> new RoomHistoryRequest(in.readString(), in.readString(),
+							in.readLong(), in.readVarInt()))
+			.register(33, RoomHistoryReply.class,
+					(m, out) -> {
+						out.writeEnum(m.error);
+						out.writeVarInt(m.messages.size());
+						for (OurChatMessage message : m.messages) {
+							out.writeObject(message);
+						}
+						out.writeLong(m.before);
+					},
+					in -> {
+						ErrorCode error = in.readEnum(ErrorCode.values());
+						int size = in.readVarInt();
+						List<OurChatMessage> messages = new ArrayList<>(
+								Math.min(size, in.remaining()));
+						for (int i = 0; i < size; i++) {
+							messages.add((OurChatMessage) in.readObject());
+						}
+						return new RoomHistoryReply(error, messages, in.readLong());
+					})
+			.register(34, CorrelatedRequest.class,
+					(m, out) -> {
+						out.writeString(m.who);
+						out.writeLong(m.id);
+						out.writeObject(m.request);
+					},
+					in -> new CorrelatedRequest(in.readString(), in.readLong(),
+							(IMessage) in.readObject()))
+			.register(35, CorrelatedReply.class,
+					(m, out) -> {
+						out.writeLong(m.id);
+						out.writeObject(m.reply);
+					},
+					in -> new CorrelatedReply(in.readLong(), (IMessage) in.readObject()));
+
+	private MessageCodecs() {}
+
+}
@@ -0,0 +1,36 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import java.util.List;
+
+public class RoomHistoryReply implements IMessage {
+
+	/**
+	 * A cursor meaning there are no older messages.
+	 */
+	public static final long NO_MORE = 0;
+
+	public final ErrorCode error;
+
+	/**
+	 * The messages of the page, oldest first.
+	 */
+	public final List<OurChatMessage> messages;
+
+	/**
+	 * The cursor to request the previous (older) page with, or NO_MORE.
+	 */
+	public final long before;
+
+	public RoomHistoryReply(ErrorCode error, List<OurChatMessage> messages,
+			long before) {
+		this.error = error;
+		this.messages = messages;
+		this.before = before;
+	}
+
+	@Override
+	public void handle(IMessageHandler messageHandler) {
+		messageHandler.handle(this);
+	}
+
+}
@@ -0,0 +1,40 @@
+package il.ac.technion.cs.sd.app.chat;
+
+/**
+ * A request for a page of the chat messages sent to a room: the last 'limit'
+ * messages before the cursor 'before'.
+ */
+public class RoomHistoryRequest implements IMessage {
+
+	/**
+	 * A cursor before which all of the room's messages are, for requesting the
+	 * latest page.
+	 */
+	public static final long LATEST = Long.MAX_VALUE;
+
+	public final String who;
+	public final String room;
+
+	/**
+	 * LATEST, or the cursor of a previous reply
+	 */
+	public final long before;
+
+	/**
+	 * The maximal number of messages to return
+	 */
+	public final int limit;
+
+	public RoomHistoryRequest(String who, String room, long before, int limit) {
+		this.who = who;
+		this.room = room;
+		this.before = before;
+		this.limit = limit;
+	}
+
+	@Override
+	public void handle(IMessageHandler messageHandler) {
+		messageHandler.handle(this);
+	}
+
+}
@@ -14,9 +14,10 @@ public class ClientData {
 	private Map<String,Room> rooms;
 
 	/**
-	 * true iff the client is online, i.e. logged to the server
+	 * true iff the client is online, i.e. logged to the server (read without
+	 * locking, by any thread)
 	 */
-	private boolean isOnline;
+	private volatile boolean isOnline;
 
 	public ClientData() {
 		rooms = new ConcurrentHashMap<>();
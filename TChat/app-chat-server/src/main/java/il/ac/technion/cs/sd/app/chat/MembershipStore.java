@@ -0,0 +1,169 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import il.ac.technion.cs.sd.lib.clientserver.MappedStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The persistent state of the server: for each client, whether it is online
+ * and the rooms it is in, and for each room, its clients and which of them are
+ * online. Each client and each room is kept under its own key in a
+ * MappedStore, so it can be read when it is first needed, and a change to it is
+ * saved without rewriting the others. The names of the rooms with online
+ * clients are kept as keys of their own, so they can be listed without reading
+ * any room.
+ */
+public class MembershipStore {
+
+	private static final String CLIENT_PREFIX = "client/";
+
+	private static final String ROOM_PREFIX = "room/";
+
+	private static final String ONLINE_ROOM_PREFIX = "online-room/";
+
+	/**
+	 * The saved state of a single client
+	 */
+	public static class Membership {
+		public final boolean online;
+		public final List<String> rooms;
+
+		public Membership(boolean online, List<String> rooms) {
+			this.online = online;
+			this.rooms = rooms;
+		}
+	}
+
+	private final MappedStore store;
+
+	public MembershipStore(MappedStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return the saved state of a client, or null if it wasn't saved.
+	 */
+	public Membership readClient(String client) {
+		byte[] bytes = store.get(CLIENT_PREFIX + client);
+		if (bytes == null) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes))) {
+			boolean online = in.readBoolean();
+			return new Membership(online, readNames(in));
+		} catch (IOException e) {
+			throw new RuntimeException("bad membership of " + client);
+		}
+	}
+
+	/**
+	 * Saves the current state of a client.
+	 */
+	public void saveClient(String client, ClientData clientData) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeBoolean(clientData.isOnline());
+			writeNames(out, clientData.getRooms().keySet());
+			out.flush();
+			store.put(CLIENT_PREFIX + client, bytes.toByteArray());
+		} catch (IOException e) {
+			throw new RuntimeException("failed to save " + client + ": "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the saved room, with its clients given ids in 'users', or null if
+	 *         it wasn't saved (or had no clients).
+	 */
+	public Room readRoom(String room, SymbolTable users) {
+		byte[] bytes = store.get(ROOM_PREFIX + room);
+		if (bytes == null) {
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes))) {
+			List<String> clients = readNames(in);
+			return new Room(room, users, clients, readNames(in));
+		} catch (IOException e) {
+			throw new RuntimeException("bad room " + room);
+		}
+	}
+
+	/**
+	 * Saves the current state of a room. An empty room is removed.
+	 */
+	public void saveRoom(Room room) {
+		try {
+			if (room.isEmpty()) {
+				store.remove(ROOM_PREFIX + room.name);
+			} else {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (DataOutputStream out = new DataOutputStream(bytes)) {
+					writeNames(out, room.getClients());
+					writeNames(out, room.getOnlineClients());
+				}
+				store.put(ROOM_PREFIX + room.name, bytes.toByteArray());
+			}
+
+			String onlineKey = ONLINE_ROOM_PREFIX + room.name;
+			boolean savedOnline = store.get(onlineKey) != null;
+			if (room.hasLoggedInUsers() && !savedOnline) {
+				store.put(onlineKey, new byte[0]);
+			} else if (!room.hasLoggedInUsers() && savedOnline) {
+				store.remove(onlineKey);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("failed to save room " + room.name
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the names of the saved rooms that have online clients.
+	 */
+	public List<String> onlineRooms() {
+		List<String> $ = new ArrayList<>();
+		for (String key : store.keys()) {
+			if (key.startsWith(ONLINE_ROOM_PREFIX)) {
+				$.add(key.substring(ONLINE_ROOM_PREFIX.length()));
+			}
+		}
+		return $;
+	}
+
+	/**
+	 * Writes all saved states to the storage device.
+	 */
+	public void force() {
+		store.force();
+	}
+
+	private static void writeNames(DataOutputStream out, Collection<String> names)
+			throws IOException {
+		List<String> copy = new ArrayList<>(names);
+		out.writeInt(copy.size());
+		for (String name : copy) {
+			out.writeUTF(name);
+		}
+	}
+
+	private static List<String> readNames(DataInputStream in)
+			throws IOException {
+		int size = in.readInt();
+		List<String> $ = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			$.add(in.readUTF());
+		}
+		return $;
+	}
+
+}
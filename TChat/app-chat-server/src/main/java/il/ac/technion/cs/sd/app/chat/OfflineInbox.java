@@ -0,0 +1,208 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import il.ac.technion.cs.sd.lib.clientserver.MappedStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The messages sent to clients while they were logged out, kept until they log
+ * in. Each client's inbox is bounded by a number of messages and a number of
+ * bytes; when it is full, its oldest messages are discarded.
+ *
+ * Every message is kept under a key of its own in a MappedStore, next to a
+ * small header with the client's first and next message numbers, so adding a
+ * message appends it (and the new header) without rewriting the rest of the
+ * inbox.
+ *
+ * Messages are taken out for delivery, and removed only once delivered, so
+ * they are not lost if the delivery fails (e.g., the server stops first).
+ *
+ * This class is thread-safe.
+ */
+public class OfflineInbox {
+
+	public static final int DEFAULT_MAX_MESSAGES = 1000;
+
+	public static final long DEFAULT_MAX_BYTES = 1 << 20;
+
+	private static final String HEADER_PREFIX = "inbox/";
+
+	private static final String MESSAGE_PREFIX = "inbox-message/";
+
+	/**
+	 * The saved state of a single inbox: the messages in it are numbered
+	 * first..next-1, and take 'bytes' bytes.
+	 */
+	private static class Header {
+		long first;
+		long next;
+		long bytes;
+	}
+
+	/**
+	 * The messages of an inbox taken out for delivery (see take)
+	 */
+	public static class Pending {
+		/**
+		 * The number of the first message
+		 */
+		public final long first;
+		public final List<IMessage> messages;
+
+		Pending(long first, List<IMessage> messages) {
+			this.first = first;
+			this.messages = messages;
+		}
+	}
+
+	private final MappedStore store;
+
+	/**
+	 * The inboxes with messages taken out and not delivered yet: the client
+	 * -> the number after the last message taken out. These messages aren't
+	 * taken out again until their delivery fails.
+	 */
+	private final Map<String, Long> taken = new HashMap<>();
+
+	private final int maxMessages;
+
+	private final long maxBytes;
+
+	/**
+	 * @param store
+	 *            where the inboxes are kept.
+	 * @param maxMessages
+	 *            the maximal number of messages in a single inbox.
+	 * @param maxBytes
+	 *            the maximal size of the (encoded) messages in a single
+	 *            inbox.
+	 */
+	public OfflineInbox(MappedStore store, int maxMessages, long maxBytes) {
+		this.store = store;
+		this.maxMessages = maxMessages;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds a message to the inbox of a client, discarding the oldest messages
+	 * in it if it is full.
+	 */
+	public synchronized void add(String client, IMessage message) {
+		byte[] bytes = MessageCodecs.BINARY.encodeToBytes(message);
+		Header header = readHeader(client);
+		try {
+			store.put(messageKey(client, header.next), bytes);
+			header.next++;
+			header.bytes += bytes.length;
+
+			while (header.first < header.next
+					&& (header.next - header.first > maxMessages || header.bytes > maxBytes)) {
+				String oldest = messageKey(client, header.first);
+				header.bytes -= store.get(oldest).length;
+				store.remove(oldest);
+				header.first++;
+			}
+			writeHeader(client, header);
+		} catch (IOException e) {
+			throw new RuntimeException("failed to keep a message for " + client
+					+ ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Takes the messages in the inbox of a client out for delivery (but those
+	 * already taken out). They stay in the inbox until removed by delivered.
+	 *
+	 * @return the messages taken out, oldest first.
+	 */
+	public synchronized Pending take(String client) {
+		Header header = readHeader(client);
+		long first = Math.max(header.first,
+				taken.getOrDefault(client, header.first));
+		List<IMessage> messages = new ArrayList<>((int) (header.next - first));
+		for (long i = first; i < header.next; i++) {
+			messages.add((IMessage) MessageCodecs.BINARY.decodeFromBytes(store
+					.get(messageKey(client, i))));
+		}
+		if (first < header.next) {
+			taken.put(client, header.next);
+		}
+		return new Pending(first, messages);
+	}
+
+	/**
+	 * Removes the messages of a client that were delivered: all of those
+	 * numbered before 'end'.
+	 */
+	public synchronized void delivered(String client, long end) {
+		Header header = readHeader(client);
+		try {
+			for (; header.first < Math.min(end, header.next); header.first++) {
+				String key = messageKey(client, header.first);
+				header.bytes -= store.get(key).length;
+				store.remove(key);
+			}
+			writeHeader(client, header);
+		} catch (IOException e) {
+			throw new RuntimeException("failed to remove the messages of "
+					+ client + ": " + e.getMessage());
+		}
+		if (taken.getOrDefault(client, end) <= end) {
+			taken.remove(client);
+		}
+	}
+
+	/**
+	 * Tells that the delivery of the messages taken out of the inbox of a
+	 * client failed, so the messages not delivered are taken out again by the
+	 * next take.
+	 */
+	public synchronized void undelivered(String client) {
+		taken.remove(client);
+	}
+
+	// the number comes first, since it can't contain a '/' (and the name can).
+	private static String messageKey(String client, long number) {
+		return MESSAGE_PREFIX + number + "/" + client;
+	}
+
+	private Header readHeader(String client) {
+		Header $ = new Header();
+		byte[] bytes = store.get(HEADER_PREFIX + client);
+		if (bytes == null) {
+			return $;
+		}
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes))) {
+			$.first = in.readLong();
+			$.next = in.readLong();
+			$.bytes = in.readLong();
+		} catch (IOException e) {
+			throw new RuntimeException("bad inbox of " + client);
+		}
+		return $;
+	}
+
+	private void writeHeader(String client, Header header) throws IOException {
+		if (header.first == header.next) {
+			store.remove(HEADER_PREFIX + client);
+			return;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(header.first);
+			out.writeLong(header.next);
+			out.writeLong(header.bytes);
+		}
+		store.put(HEADER_PREFIX + client, bytes.toByteArray());
+	}
+
+}
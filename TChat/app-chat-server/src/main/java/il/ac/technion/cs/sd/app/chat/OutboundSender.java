@@ -0,0 +1,358 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Sends the server's outgoing messages on a fixed pool of worker threads.
+ * Each client has its own mailbox, drained by one worker at a time, so messages
+ * to the same client are sent in the order they were given, while messages to
+ * different clients are sent in parallel. Everything waiting in a mailbox when
+ * a worker gets to it is sent to the client as a single MessageBatch. At most
+ * 'capacity' messages may wait to be sent; the OverflowPolicy decides what
+ * happens to a message given when there is no room for it.
+ *
+ * A worker never waits for a client to receive its messages: at most
+ * MAX_BATCHES_IN_FLIGHT batches are sent to a client before it receives them,
+ * and its mailbox waits (without a worker) for it to catch up. A client that
+ * receives nothing for 'stuckMillis' while batches are waiting for it is taken
+ * for dead: the messages waiting to be sent to it, and those given to it
+ * until it receives something, are discarded.
+ */
+public class OutboundSender {
+
+	/**
+	 * What to do with a message given while 'capacity' messages are already
+	 * waiting to be sent.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The caller waits until there is room for the message.
+		 */
+		BLOCK,
+		/**
+		 * The message is discarded.
+		 */
+		DROP
+	}
+
+	public static final int DEFAULT_WORKERS = 4;
+
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	public static final long DEFAULT_STUCK_MILLIS = 30000;
+
+	/**
+	 * The maximal number of messages sent together in one MessageBatch
+	 */
+	public static final int MAX_BATCH_SIZE = 64;
+
+	/**
+	 * The maximal number of batches sent to a client and not received yet.
+	 * Well below the window of the connection, so sending never waits for it.
+	 */
+	public static final int MAX_BATCHES_IN_FLIGHT = 8;
+
+	/**
+	 * The mailbox of a single client: the messages waiting to be sent to it.
+	 */
+	private static class Lane {
+		final String to;
+		final Queue<IMessage> messages = new ArrayDeque<>();
+		/**
+		 * true iff a worker was given this lane to drain
+		 */
+		boolean scheduled = false;
+		/**
+		 * The number of batches sent and not received yet
+		 */
+		int inFlight = 0;
+		/**
+		 * When the client last received a batch, or (if it had none in flight
+		 * before) was sent one
+		 */
+		long lastProgress;
+		/**
+		 * true once the lane was dropped from the lanes; messages are then
+		 * given to a new lane of the client.
+		 */
+		boolean removed = false;
+
+		Lane(String to) {
+			this.to = to;
+		}
+
+		boolean isStuck(long stuckMillis) {
+			return inFlight > 0
+					&& System.currentTimeMillis() - lastProgress > stuckMillis;
+		}
+	}
+
+	private final BiFunction<String, IMessage, CompletableFuture<Void>> transport;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final long stuckMillis;
+
+	private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+	/**
+	 * One permit for each message that may still be added.
+	 */
+	private final Semaphore room;
+
+	/**
+	 * The number of messages waiting in the lanes (notified on this when it
+	 * drops to 0)
+	 */
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	private final ExecutorService workers;
+
+	/**
+	 * Creates a new sender and starts its workers.
+	 *
+	 * @param transport
+	 *            sends a single message to a client, returning a future
+	 *            completed once the client received it.
+	 * @param workers
+	 *            the number of worker threads.
+	 * @param capacity
+	 *            the maximal number of messages waiting to be sent.
+	 * @param overflowPolicy
+	 *            what to do with messages given when full.
+	 */
+	public OutboundSender(
+			BiFunction<String, IMessage, CompletableFuture<Void>> transport,
+			int workers, int capacity, OverflowPolicy overflowPolicy) {
+		this(transport, workers, capacity, overflowPolicy,
+				DEFAULT_STUCK_MILLIS);
+	}
+
+	/**
+	 * Creates a new sender and starts its workers.
+	 *
+	 * @param stuckMillis
+	 *            how long a client may receive nothing, while batches are
+	 *            waiting for it, before it is taken for dead.
+	 */
+	public OutboundSender(
+			BiFunction<String, IMessage, CompletableFuture<Void>> transport,
+			int workers, int capacity, OverflowPolicy overflowPolicy,
+			long stuckMillis) {
+		this.transport = transport;
+		this.overflowPolicy = overflowPolicy;
+		this.stuckMillis = stuckMillis;
+		this.room = new Semaphore(capacity);
+
+		AtomicInteger threadsCreated = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "chat-server-outbound-"
+					+ threadsCreated.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Queues a message to be sent to a client, after all of the messages
+	 * previously queued to it.
+	 *
+	 * @return false iff the message was discarded, because there was no room
+	 *         for it, the client is taken for dead or the sender was shut
+	 *         down.
+	 */
+	public boolean send(String to, IMessage message) {
+		Lane stuck = lanes.get(to);
+		if (stuck != null && discardIfStuck(stuck)) {
+			return false;
+		}
+
+		if (overflowPolicy == OverflowPolicy.BLOCK) {
+			try {
+				// while waiting, the room taken by dead clients is freed.
+				while (!room.tryAcquire(stuckMillis, TimeUnit.MILLISECONDS)) {
+					lanes.values().forEach(this::discardIfStuck);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		} else if (!room.tryAcquire()) {
+			return false;
+		}
+		waiting.incrementAndGet();
+
+		while (true) {
+			Lane lane = lanes.computeIfAbsent(to, Lane::new);
+			synchronized (lane) {
+				if (lane.removed) {
+					continue;
+				}
+				lane.messages.add(message);
+				// otherwise, it is scheduled once the client catches up.
+				if (lane.inFlight < MAX_BATCHES_IN_FLIGHT) {
+					return schedule(lane);
+				}
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Gives a lane to a worker to drain, unless it was already given. Called
+	 * holding the lane.
+	 *
+	 * @return false iff the sender was shut down (and the messages of the lane
+	 *         were discarded).
+	 */
+	private boolean schedule(Lane lane) {
+		if (lane.scheduled) {
+			return true;
+		}
+		try {
+			workers.execute(() -> drain(lane));
+		} catch (RejectedExecutionException e) {
+			// we were shut down.
+			release(lane.messages.size());
+			lane.messages.clear();
+			return false;
+		}
+		lane.scheduled = true;
+		return true;
+	}
+
+	/**
+	 * Sends the messages waiting in a lane until it is empty, or
+	 * MAX_BATCHES_IN_FLIGHT batches wait to be received by the client,
+	 * batching together the messages waiting at each point. Runs on a worker.
+	 */
+	private void drain(Lane lane) {
+		while (true) {
+			List<IMessage> batch = new ArrayList<>();
+			synchronized (lane) {
+				if (lane.inFlight >= MAX_BATCHES_IN_FLIGHT) {
+					// rescheduled once the client receives a batch.
+					lane.scheduled = false;
+					return;
+				}
+				IMessage message;
+				while (batch.size() < MAX_BATCH_SIZE
+						&& (message = lane.messages.poll()) != null) {
+					batch.add(message);
+				}
+				if (batch.isEmpty()) {
+					lane.scheduled = false;
+					removeIfIdle(lane);
+					return;
+				}
+				if (lane.inFlight++ == 0) {
+					lane.lastProgress = System.currentTimeMillis();
+				}
+			}
+			CompletableFuture<Void> received;
+			try {
+				received = transport.apply(lane.to, batch.size() == 1 ? batch
+						.get(0) : new MessageBatch(batch));
+			} catch (RuntimeException e) {
+				// the client can't be reached; nothing more to do with these
+				// messages.
+				received = CompletableFuture.completedFuture(null);
+			} finally {
+				release(batch.size());
+			}
+			received.whenComplete((v, e) -> received(lane));
+		}
+	}
+
+	/**
+	 * Called once a batch sent to a client was received (or failed, which
+	 * leaves nothing more to do with it either).
+	 */
+	private void received(Lane lane) {
+		synchronized (lane) {
+			lane.inFlight--;
+			lane.lastProgress = System.currentTimeMillis();
+			if (!lane.messages.isEmpty()) {
+				schedule(lane);
+			} else if (!lane.scheduled) {
+				removeIfIdle(lane);
+			}
+		}
+	}
+
+	/**
+	 * Drops a lane that has nothing to send, so the lanes are only of the
+	 * clients being sent to. Called holding the lane.
+	 */
+	private void removeIfIdle(Lane lane) {
+		if (lane.messages.isEmpty() && lane.inFlight == 0) {
+			lane.removed = true;
+			lanes.remove(lane.to, lane);
+		}
+	}
+
+	/**
+	 * Discards the messages waiting for a client taken for dead.
+	 *
+	 * @return true iff it is taken for dead.
+	 */
+	private boolean discardIfStuck(Lane lane) {
+		synchronized (lane) {
+			if (!lane.isStuck(stuckMillis)) {
+				return false;
+			}
+			release(lane.messages.size());
+			lane.messages.clear();
+			return true;
+		}
+	}
+
+	/**
+	 * Frees the room of messages that are no longer waiting.
+	 */
+	private void release(int messages) {
+		room.release(messages);
+		if (waiting.addAndGet(-messages) == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits (up to 'timeoutMillis') for the queued messages to be sent, and
+	 * stops the workers.
+	 */
+	public void shutdown(long timeoutMillis) {
+		// the workers aren't shut down first, since a lane waiting for its
+		// client to catch up has to be given to them again.
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (this) {
+			long left;
+			while (waiting.get() > 0
+					&& (left = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		workers.shutdownNow();
+	}
+
+}
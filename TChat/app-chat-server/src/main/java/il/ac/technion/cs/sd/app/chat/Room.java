@@ -1,58 +1,129 @@
 package il.ac.technion.cs.sd.app.chat;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A chat room. Its clients are kept by their ids in the server's SymbolTable
+ * of users, as bit sets.
+ */
 public class Room {
 
-	private final Map<String,ClientData> clientsInRoom;
-	
-	private final Map<String,ClientData> onlineClientsInRoom;
+	private final SymbolTable users;
+
+	private final BitSet clientsInRoom = new BitSet();
+
+	private final BitSet onlineClientsInRoom = new BitSet();
+
+	/**
+	 * The ids of the online and the logged out clients, made again on every
+	 * change, so sending to the room reads them without copying or locking
+	 */
+	private volatile int[] onlineSnapshot;
+
+	private volatile int[] offlineSnapshot;
 
 	public String name;
-	
-	public Room(String name) {
-		
+
+	public Room(String name, SymbolTable users) {
+		this(name, users, Collections.emptyList(), Collections.emptyList());
+	}
+
+	/**
+	 * Creates a room that already has clients in it (e.g., when loading it).
+	 */
+	public Room(String name, SymbolTable users, Collection<String> clients,
+			Collection<String> onlineClients) {
+
 		this.name = name;
-		clientsInRoom = new ConcurrentHashMap<String, ClientData>();
-		
-		onlineClientsInRoom = new ConcurrentHashMap<String, ClientData>();
+		this.users = users;
+		for (String client : clients) {
+			clientsInRoom.set(users.intern(client));
+		}
+		for (String client : onlineClients) {
+			onlineClientsInRoom.set(users.intern(client));
+		}
+		takeSnapshots();
 	}
-	
-	public void addClient(String clientName, ClientData client){
-		clientsInRoom.put(clientName,client);
-		onlineClientsInRoom.put(clientName,client);
+
+	public synchronized void addClient(int clientId){
+		clientsInRoom.set(clientId);
+		onlineClientsInRoom.set(clientId);
+		takeSnapshots();
 	}
-	
-	public void removeClient(String clientName){
-		clientsInRoom.remove(clientName);
-		onlineClientsInRoom.remove(clientName);
+
+	public synchronized void removeClient(int clientId){
+		clientsInRoom.clear(clientId);
+		onlineClientsInRoom.clear(clientId);
+		takeSnapshots();
 	}
-	
-	public void onClientLogin(String clientName, ClientData client){
-		onlineClientsInRoom.put(clientName, client);
+
+	public synchronized void onClientLogin(int clientId){
+		onlineClientsInRoom.set(clientId);
+		takeSnapshots();
 	}
-	
-	public void onClientLogout(String clientName){
-		onlineClientsInRoom.remove(clientName);
+
+	public synchronized void onClientLogout(int clientId){
+		onlineClientsInRoom.clear(clientId);
+		takeSnapshots();
+	}
+
+	private void takeSnapshots() {
+		BitSet offline = (BitSet) clientsInRoom.clone();
+		offline.andNot(onlineClientsInRoom);
+		onlineSnapshot = onlineClientsInRoom.stream().toArray();
+		offlineSnapshot = offline.stream().toArray();
 	}
 
 	public List<String> getClients() {
-		return new ArrayList<>(clientsInRoom.keySet());
+		List<String> $ = names(onlineSnapshot);
+		$.addAll(names(offlineSnapshot));
+		return $;
 	}
 
 	public List<String> getOnlineClients() {
-		return new ArrayList<>(onlineClientsInRoom.keySet());
+		return names(onlineSnapshot);
+	}
+
+	private List<String> names(int[] ids) {
+		List<String> $ = new ArrayList<>(ids.length);
+		for (int id : ids) {
+			$.add(users.name(id));
+		}
+		return $;
+	}
+
+	/**
+	 * @return the ids of the online clients, without copying them. The array
+	 *         returned must not be changed, and never changes (a change to
+	 *         the room makes a new one).
+	 */
+	public int[] onlineClientIds() {
+		return onlineSnapshot;
+	}
+
+	/**
+	 * @return the ids of the logged out clients, without copying them. The
+	 *         array returned must not be changed, and never changes (a change
+	 *         to the room makes a new one).
+	 */
+	public int[] offlineClientIds() {
+		return offlineSnapshot;
+	}
+
+	public synchronized boolean hasClient(int clientId){
+		return clientsInRoom.get(clientId);
 	}
-	
+
 	public boolean hasLoggedInUsers(){
-		return onlineClientsInRoom.size() != 0;
+		return onlineSnapshot.length != 0;
 	}
-	
+
 	public boolean isEmpty(){
-		return clientsInRoom.size() == 0;
+		return onlineSnapshot.length == 0 && offlineSnapshot.length == 0;
 	}
-	
+
 }
@@ -0,0 +1,219 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the operations on each room as an actor: every room has its own
+ * mailbox of tasks, run one at a time in the order they were given, on a
+ * shared pool of threads. Tasks of different rooms run in parallel, so the
+ * work scales with the number of active rooms. A busy room gives up its thread
+ * after MAX_TASKS_IN_TURN tasks, so it can't keep the other rooms waiting.
+ */
+public class RoomActors {
+
+	/**
+	 * The maximal number of tasks of a room run before letting other rooms
+	 * run
+	 */
+	public static final int MAX_TASKS_IN_TURN = 64;
+
+	/**
+	 * A task given to an actor, and the future completed once it ran
+	 */
+	private static class Task {
+		final Runnable operation;
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+
+		Task(Runnable operation) {
+			this.operation = operation;
+		}
+	}
+
+	/**
+	 * The tasks waiting to run on a single room
+	 */
+	private static class Mailbox {
+		final String room;
+		final Queue<Task> tasks = new ArrayDeque<>();
+		/**
+		 * true iff a thread was given this mailbox to run
+		 */
+		boolean scheduled = false;
+		/**
+		 * true once the mailbox was dropped from the mailboxes; tasks are then
+		 * given to a new mailbox of the room.
+		 */
+		boolean removed = false;
+
+		Mailbox(String room) {
+			this.room = room;
+		}
+	}
+
+	private final Map<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+	private final ExecutorService pool;
+
+	/**
+	 * The number of tasks given and not run yet (notified on this when it
+	 * drops to 0)
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * Creates the actors, and starts their threads.
+	 *
+	 * @param threads
+	 *            the number of threads running the tasks of all rooms.
+	 */
+	public RoomActors(int threads) {
+		AtomicInteger threadsCreated = new AtomicInteger();
+		pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "chat-server-room-"
+					+ threadsCreated.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Gives a task to the actor of a room, to run after all of the tasks
+	 * previously given to it.
+	 *
+	 * @return a future completed once the task ran (exceptionally, if it threw
+	 *         or the actors were shut down).
+	 */
+	public CompletableFuture<Void> tell(String room, Runnable operation) {
+		Task task = new Task(operation);
+		while (true) {
+			Mailbox mailbox = mailboxes.computeIfAbsent(room, Mailbox::new);
+			synchronized (mailbox) {
+				if (mailbox.removed) {
+					continue;
+				}
+				pending.incrementAndGet();
+				mailbox.tasks.add(task);
+				if (!mailbox.scheduled) {
+					schedule(mailbox);
+				}
+				return task.done;
+			}
+		}
+	}
+
+	/**
+	 * Gives a mailbox to the pool to run. If we were shut down, its tasks
+	 * fail instead. Called holding the mailbox.
+	 */
+	private void schedule(Mailbox mailbox) {
+		try {
+			pool.execute(() -> run(mailbox));
+			mailbox.scheduled = true;
+		} catch (RejectedExecutionException e) {
+			// we were shut down.
+			fail(mailbox, e);
+		}
+	}
+
+	/**
+	 * Fails the tasks waiting in a mailbox, and drops it. Called holding the
+	 * mailbox.
+	 */
+	private void fail(Mailbox mailbox, Exception e) {
+		for (Task task : mailbox.tasks) {
+			task.done.completeExceptionally(e);
+		}
+		ran(mailbox.tasks.size());
+		mailbox.tasks.clear();
+		mailbox.scheduled = false;
+		remove(mailbox);
+	}
+
+	/**
+	 * Runs the tasks of a mailbox, until it is empty or MAX_TASKS_IN_TURN ran
+	 * (and then gives it to the pool again). Runs on a pool thread.
+	 */
+	private void run(Mailbox mailbox) {
+		for (int i = 0; i < MAX_TASKS_IN_TURN; i++) {
+			Task task;
+			synchronized (mailbox) {
+				task = mailbox.tasks.poll();
+				if (task == null) {
+					mailbox.scheduled = false;
+					remove(mailbox);
+					return;
+				}
+			}
+			try {
+				task.operation.run();
+				task.done.complete(null);
+			} catch (Throwable e) {
+				// even an Error mustn't stop the room (or leave the future
+				// incomplete).
+				task.done.completeExceptionally(e);
+			} finally {
+				ran(1);
+			}
+		}
+		synchronized (mailbox) {
+			schedule(mailbox);
+		}
+	}
+
+	/**
+	 * Drops an idle mailbox, so there are mailboxes only for the rooms with
+	 * tasks. Called holding the mailbox.
+	 */
+	private void remove(Mailbox mailbox) {
+		mailbox.removed = true;
+		mailboxes.remove(mailbox.room, mailbox);
+	}
+
+	private void ran(int tasks) {
+		if (pending.addAndGet(-tasks) == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits (up to 'timeoutMillis') for the tasks given to run, and stops the
+	 * threads.
+	 */
+	public void shutdown(long timeoutMillis) {
+		// the pool isn't shut down first, since a busy mailbox has to be given
+		// to it again.
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (this) {
+			long left;
+			while (pending.get() > 0
+					&& (left = deadline - System.currentTimeMillis()) > 0) {
+				try {
+					wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		pool.shutdownNow();
+
+		// the tasks still waiting will never run.
+		for (Mailbox mailbox : mailboxes.values()) {
+			synchronized (mailbox) {
+				fail(mailbox, new RejectedExecutionException(
+						"the actors were shut down"));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,216 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import il.ac.technion.cs.sd.lib.clientserver.MappedStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The chat messages sent to each room, numbered in the order they were sent
+ * (starting from 1), read a page at a time.
+ *
+ * Every message is kept under a key of its own in a MappedStore (whose segment
+ * files are appended to), next to a small header with the room's first and
+ * next message numbers, so a message is added without rewriting anything else,
+ * and a page is read without reading the rest of the room's messages. The last
+ * RECENT messages of each room are also kept in memory, in a ring buffer, so
+ * the latest pages (which are the ones usually read) don't have to be decoded.
+ * Each room keeps at most 'maxMessages' messages; older ones are discarded.
+ * Only the MAX_LOGS rooms used last are kept in memory (a room dropped is read
+ * again from its header), and rooms without messages aren't kept at all.
+ *
+ * This class is thread-safe.
+ */
+public class RoomHistory {
+
+	public static final int DEFAULT_MAX_MESSAGES = 10000;
+
+	/**
+	 * The maximal number of messages in a single page
+	 */
+	public static final int MAX_PAGE_SIZE = 100;
+
+	/**
+	 * The number of messages of each room kept in memory
+	 */
+	static final int RECENT = 128;
+
+	/**
+	 * The maximal number of rooms whose logs are kept in memory
+	 */
+	static final int MAX_LOGS = 1024;
+
+	private static final String HEADER_PREFIX = "history/";
+
+	private static final String MESSAGE_PREFIX = "history-message/";
+
+	/**
+	 * The messages of a single room: they are numbered first..next-1, and the
+	 * ones numbered recentFrom..next-1 are also in 'recent' (message i at
+	 * i % RECENT).
+	 */
+	private static class Log {
+		long first = 1;
+		long next = 1;
+		long recentFrom = 1;
+		final OurChatMessage[] recent = new OurChatMessage[RECENT];
+	}
+
+	private final MappedStore store;
+
+	private final int maxMessages;
+
+	/**
+	 * The logs of the rooms used last, least recently used first
+	 */
+	private final Map<String, Log> logs = new LinkedHashMap<String, Log>(16,
+			0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Log> eldest) {
+			return size() > MAX_LOGS;
+		}
+	};
+
+	/**
+	 * @param store
+	 *            where the messages are kept.
+	 * @param maxMessages
+	 *            the maximal number of messages kept for a single room.
+	 */
+	public RoomHistory(MappedStore store, int maxMessages) {
+		this.store = store;
+		this.maxMessages = maxMessages;
+	}
+
+	/**
+	 * Adds a message to the history of its room.
+	 */
+	public synchronized void add(OurChatMessage message) {
+		Log log = log(message.room);
+		try {
+			store.put(messageKey(message.room, log.next),
+					MessageCodecs.BINARY.encodeToBytes(message));
+			log.recent[(int) (log.next % RECENT)] = message;
+			log.next++;
+			log.recentFrom = Math.max(log.recentFrom, log.next - RECENT);
+
+			while (log.next - log.first > maxMessages) {
+				store.remove(messageKey(message.room, log.first));
+				log.first++;
+			}
+			writeHeader(message.room, log);
+		} catch (IOException e) {
+			throw new RuntimeException("failed to keep a message of "
+					+ message.room + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the last 'limit' (at least 1, at most MAX_PAGE_SIZE) messages of
+	 *         a room sent before the cursor 'before', and the cursor of the
+	 *         page before them.
+	 */
+	public synchronized RoomHistoryReply page(String room, long before,
+			int limit) {
+		Log log = existingLog(room);
+		if (log == null) {
+			return new RoomHistoryReply(ErrorCode.Success, new ArrayList<>(),
+					RoomHistoryReply.NO_MORE);
+		}
+		// a page of no messages would give back the same cursor, so a client
+		// reading page after page would never get to the first one.
+		long end = Math.min(before, log.next);
+		long start = Math.max(log.first,
+				end - Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+
+		List<OurChatMessage> messages = new ArrayList<>();
+		for (long i = start; i < end; i++) {
+			messages.add(i >= log.recentFrom ? log.recent[(int) (i % RECENT)]
+					: (OurChatMessage) MessageCodecs.BINARY
+							.decodeFromBytes(store.get(messageKey(room, i))));
+		}
+		return new RoomHistoryReply(ErrorCode.Success, messages,
+				start > log.first ? start : RoomHistoryReply.NO_MORE);
+	}
+
+	/**
+	 * Discards the history of a room.
+	 */
+	public synchronized void clear(String room) {
+		Log log = existingLog(room);
+		if (log == null) {
+			return;
+		}
+		try {
+			for (long i = log.first; i < log.next; i++) {
+				store.remove(messageKey(room, i));
+			}
+			store.remove(HEADER_PREFIX + room);
+		} catch (IOException e) {
+			throw new RuntimeException("failed to clear the history of "
+					+ room + ": " + e.getMessage());
+		}
+		logs.remove(room);
+	}
+
+	// the number comes first, since it can't contain a '/' (and the name can).
+	private static String messageKey(String room, long number) {
+		return MESSAGE_PREFIX + number + "/" + room;
+	}
+
+	/**
+	 * @return the log of a room, starting a new one if it has no messages.
+	 */
+	private Log log(String room) {
+		Log $ = existingLog(room);
+		if ($ == null) {
+			$ = new Log();
+			logs.put(room, $);
+		}
+		return $;
+	}
+
+	/**
+	 * @return the log of a room, or null if it has no messages.
+	 */
+	private Log existingLog(String room) {
+		Log $ = logs.get(room);
+		if ($ != null) {
+			return $;
+		}
+		byte[] bytes = store.get(HEADER_PREFIX + room);
+		if (bytes == null) {
+			return null;
+		}
+		$ = new Log();
+		try (DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(bytes))) {
+			$.first = in.readLong();
+			$.next = in.readLong();
+			$.recentFrom = $.next;
+		} catch (IOException e) {
+			throw new RuntimeException("bad history of " + room);
+		}
+		logs.put(room, $);
+		return $;
+	}
+
+	private void writeHeader(String room, Log log) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(log.first);
+			out.writeLong(log.next);
+		}
+		store.put(HEADER_PREFIX + room, bytes.toByteArray());
+	}
+
+}
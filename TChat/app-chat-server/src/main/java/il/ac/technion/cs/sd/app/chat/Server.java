@@ -5,62 +5,218 @@ import il.ac.technion.cs.sd.app.chat.IMessage;
 import il.ac.technion.cs.sd.app.chat.IMessageHandler;
 import il.ac.technion.cs.sd.app.chat.LoginRequestMessage;
 import il.ac.technion.cs.sd.app.chat.LogoutRequestMessage;
+import il.ac.technion.cs.sd.app.chat.OutboundSender.OverflowPolicy;
 import il.ac.technion.cs.sd.app.chat.RoomAnnouncement.Announcement;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class represents a server in our client-server architecture. The server
  * implements IMessageHandler, and implements a visitor design pattern, to allow
  * it to treat each possible message type differently.
+ * 
+ * The handlers may be called by several threads at once. Changes to a client
+ * are made holding the lock of its stripe (see userLock), and changes to a
+ * room (and sending to it) holding the room; whether clients are online, and
+ * who is in each room, are read without locking.
  */
 public class Server implements IMessageHandler {
+	private static final Logger LOG = Logger.getLogger(Server.class.getName());
+
 	/**
-	 * Stores all of the data about the clients in a clientName->clientData map
+	 * Stores the data about the clients in a clientName->clientData map. A
+	 * client is loaded from the MembershipStore when it is first needed, and
+	 * dropped when it logs out.
 	 */
 	private Map<String, ClientData> clients;
 
+	private static final int USER_LOCK_STRIPES = 64;
+
+	/**
+	 * The locks of the stripes of clients (see userLock)
+	 */
+	private final Object[] userLocks = new Object[USER_LOCK_STRIPES];
+
+	/**
+	 * The rooms loaded so far (a room is loaded when it is first needed)
+	 */
 	private Map<String, Room> allRooms;
 
-	private Map<String, Room> onlineRooms;
+	/**
+	 * The names of the rooms with logged in clients
+	 */
+	private Set<String> onlineRooms;
+
+	/**
+	 * Gives the clients the ids by which the rooms keep them
+	 */
+	private SymbolTable users;
 
 	/**
 	 * The ServerCommunicator with which the server speaks with the clients
 	 */
 	private il.ac.technion.cs.sd.lib.clientserver.Server communicator;
 
+	/**
+	 * Sends the messages to the clients, in order for each client, without
+	 * blocking the handling of incoming messages.
+	 */
+	private OutboundSender outbound;
+
+	/**
+	 * How long stop() waits for queued messages to be sent
+	 */
+	private static final long MAX_TIME_TO_FLUSH_OUTBOUND = 500;
+
+	private final int outboundWorkers;
+
+	private final int outboundCapacity;
+
+	private final OverflowPolicy outboundOverflowPolicy;
+
+	/**
+	 * The persistent state of the clients, saved as each client changes
+	 */
+	private MembershipStore membership;
+
+	/**
+	 * The messages sent to clients while they were logged out
+	 */
+	private OfflineInbox inbox;
+
+	/**
+	 * The chat messages sent to each room
+	 */
+	private RoomHistory history;
+
+	/**
+	 * The number of threads the rooms run on as actors (see setRoomActors)
+	 */
+	private int roomActorThreads = 0;
+
+	/**
+	 * Runs the operations on each room, or null if the rooms aren't run as
+	 * actors
+	 */
+	private RoomActors roomActors;
+
+	/**
+	 * The last request of each client given to run, while it hasn't finished
+	 * (only when the rooms are run as actors): the client's next request runs
+	 * after it.
+	 */
+	private Map<String, CompletableFuture<Void>> lastRequests;
+
+	/**
+	 * The ids of the CorrelatedRequests being handled: the request inside
+	 * -> its id (compared by identity, so the reply to each request is sent
+	 * with the id of exactly that request)
+	 */
+	private final Map<IMessage, Long> requestIds = Collections
+			.synchronizedMap(new IdentityHashMap<>());
+
 	/**
 	 * the server's address
 	 */
 	public final String myAddress;
 
 	/**
-	 * Creates a new server, initializes and starts it (and its communicator)
+	 * Creates a new server, with the default outbound configuration.
 	 */
 	public Server(String myAddress) {
+		this(myAddress, OutboundSender.DEFAULT_WORKERS,
+				OutboundSender.DEFAULT_CAPACITY, OverflowPolicy.BLOCK);
+	}
+
+	/**
+	 * Creates a new server.
+	 * 
+	 * @param outboundWorkers
+	 *            the number of threads sending messages to the clients.
+	 * @param outboundCapacity
+	 *            the maximal number of messages waiting to be sent.
+	 * @param outboundOverflowPolicy
+	 *            what to do with a message when outboundCapacity messages are
+	 *            already waiting.
+	 */
+	public Server(String myAddress, int outboundWorkers, int outboundCapacity,
+			OverflowPolicy outboundOverflowPolicy) {
 		this.myAddress = myAddress;
-		clients = new HashMap<>();
-		onlineRooms = new ConcurrentHashMap<String, Room>();
+		this.outboundWorkers = outboundWorkers;
+		this.outboundCapacity = outboundCapacity;
+		this.outboundOverflowPolicy = outboundOverflowPolicy;
+		clients = new ConcurrentHashMap<>();
+		onlineRooms = ConcurrentHashMap.newKeySet();
 		allRooms = new ConcurrentHashMap<String, Room>();
+		users = new SymbolTable();
+		for (int i = 0; i < userLocks.length; i++) {
+			userLocks[i] = new Object();
+		}
+	}
 
+	/**
+	 * Sets the number of threads on which the rooms run as actors, from the
+	 * next start: the operations on each room (joining, leaving, chatting, and
+	 * announcing logging in and out) are then run one at a time on
+	 * the room's actor (see RoomActors), instead of on the thread handling the
+	 * message. The requests of each client still run in the order they were
+	 * sent. 0 (the default) doesn't run the rooms as actors.
+	 * 
+	 * @param threads
+	 *            the number of threads shared by all of the rooms.
+	 */
+	public void setRoomActors(int threads) {
+		roomActorThreads = threads;
 	}
 
 	/**
-	 * Stops the server
+	 * Stops the server. Its state was saved as it changed, so nothing has to
+	 * be saved now.
 	 */
 	public void stop() {
+		if (roomActors != null) {
+			roomActors.shutdown(MAX_TIME_TO_FLUSH_OUTBOUND);
+		}
+		outbound.shutdown(MAX_TIME_TO_FLUSH_OUTBOUND);
 		communicator.stop();
 	}
 
 	public void start() {
 		communicator = new il.ac.technion.cs.sd.lib.clientserver.Server(
-				myAddress);
+				myAddress, MessageCodecs.BINARY);
+		membership = new MembershipStore(communicator.openStore("membership"));
+		inbox = new OfflineInbox(communicator.openStore("inbox"),
+				OfflineInbox.DEFAULT_MAX_MESSAGES, OfflineInbox.DEFAULT_MAX_BYTES);
+		history = new RoomHistory(communicator.openStore("history"),
+				RoomHistory.DEFAULT_MAX_MESSAGES);
+
+		// clients and rooms are loaded as they are needed; only the names of the
+		// online rooms are needed right away.
+		clients = new ConcurrentHashMap<>();
+		onlineRooms = ConcurrentHashMap.newKeySet();
+		onlineRooms.addAll(membership.onlineRooms());
+		allRooms = new ConcurrentHashMap<String, Room>();
+		users = new SymbolTable();
+		lastRequests = new ConcurrentHashMap<>();
+
+		outbound = new OutboundSender(
+				(to, message) -> communicator.sendAsync(to, message, false),
+				outboundWorkers, outboundCapacity, outboundOverflowPolicy);
+		roomActors = roomActorThreads > 0 ? new RoomActors(roomActorThreads)
+				: null;
 		communicator.start(new BiConsumer<Object, String>() {
 
 			@Override
@@ -69,28 +225,150 @@ public class Server implements IMessageHandler {
 			}
 
 		});
+	}
+
+	/**
+	 * Runs a request of a client on a room: on the room's actor, after the
+	 * client's previous request, or (if the rooms aren't run as actors) right
+	 * away, on this thread.
+	 */
+	private void onRoom(String who, IMessage request, String room,
+			Runnable operation) {
+		if (roomActors != null) {
+			inOrder(who, request, () -> roomActors.tell(room, operation));
+		} else {
+			operation.run();
+		}
+	}
+
+	/**
+	 * Runs a request of a client that isn't on a single room: right after the
+	 * client's previous request (which may be running on a room's actor), or
+	 * (if the rooms aren't run as actors) right away, on this thread.
+	 */
+	private void onClient(String who, IMessage request, Runnable operation) {
+		if (roomActors != null) {
+			inOrder(who, request, () -> {
+				operation.run();
+				return CompletableFuture.completedFuture(null);
+			});
+		} else {
+			operation.run();
+		}
+	}
+
+	/**
+	 * Runs the requests of a client one after the other, in the order they
+	 * arrived, though some of them run on the actors of rooms: each starts once
+	 * the previous one is done. If one fails, the client is told so.
+	 * 
+	 * @param operation
+	 *            starts the request, and returns a future completed once it is
+	 *            done.
+	 */
+	private void inOrder(String who, IMessage request,
+			Supplier<CompletableFuture<Void>> operation) {
+		CompletableFuture<Void> previousDone = new CompletableFuture<>();
+		CompletableFuture<Void> $ = previousDone.thenCompose(v -> operation
+				.get());
+		CompletableFuture<Void> previous = lastRequests.put(who, $);
+		if (previous == null) {
+			previousDone.complete(null);
+		} else {
+			previous.whenComplete((v, e) -> previousDone.complete(null));
+		}
+		$.whenComplete((v, e) -> {
+			lastRequests.remove(who, $);
+			if (e != null) {
+				logFailure("failed handling a request of " + who, e);
+				failed(who, request);
+			}
+		});
+	}
 
-		// load data if possible.
-		Optional<Object> data = communicator.readObjectFromFile(myAddress);
-		if (data.isPresent()) {
-			ServerData serverData = (ServerData) data.get();
-			clients = serverData.clients;
-			onlineRooms = serverData.onlineRooms;
-			allRooms = serverData.allRooms;
+	/**
+	 * Logs the failure of an operation, unless it failed because the server
+	 * was stopped.
+	 */
+	private static void logFailure(String what, Throwable e) {
+		Throwable cause = e instanceof CompletionException
+				&& e.getCause() != null ? e.getCause() : e;
+		if (!(cause instanceof RejectedExecutionException)) {
+			LOG.log(Level.WARNING, what, cause);
 		}
+	}
 
+	/**
+	 * @return the lock of the stripe of a client. Changes to a client (and to
+	 *         its membership in rooms) are made holding it; a room is locked
+	 *         (by synchronizing on it) only after it, never before.
+	 */
+	private Object userLock(String name) {
+		return userLocks[(name.hashCode() & Integer.MAX_VALUE)
+				% userLocks.length];
 	}
 
-	public void sendToRoom(String from, String room, IMessage message) {
-		for (String to : allRooms.get(room).getClients()) {
-			if (!to.equals(from)) {
-				send(to, message);
+	/**
+	 * @return the data of a client, loading it (and its rooms) if it wasn't
+	 *         loaded yet, or null if there is no such client.
+	 */
+	private ClientData client(String name) {
+		return clients.computeIfAbsent(name, this::load);
+	}
+
+	/**
+	 * @return the saved data of a client, or null if it wasn't saved.
+	 */
+	private ClientData load(String name) {
+		MembershipStore.Membership saved = membership.readClient(name);
+		if (saved == null) {
+			return null;
+		}
+
+		ClientData $ = new ClientData();
+		$.setOnline(saved.online);
+		for (String roomName : saved.rooms) {
+			Room room = room(roomName);
+			if (room != null) {
+				$.addRoom(roomName, room);
 			}
 		}
+		return $;
 	}
 
 	/**
-	 * Sends a message to a client.
+	 * @return a room, loading it if it wasn't loaded yet, or null if there is
+	 *         no such room.
+	 */
+	private Room room(String name) {
+		return allRooms.computeIfAbsent(name,
+				n -> membership.readRoom(n, users));
+	}
+
+	/**
+	 * Sends a message to all of the clients in a room (but 'from'). Called
+	 * holding the room, so messages to it are sent in a single order.
+	 */
+	private void sendToRoom(String from, Room room, IMessage message) {
+		// the room knows which of its clients are online, so the clients
+		// themselves don't have to be loaded. going over its id snapshots
+		// allocates nothing, and names are only looked up to send.
+		int fromId = users.id(from);
+		for (int id : room.onlineClientIds()) {
+			if (id != fromId) {
+				outbound.send(users.name(id), message);
+			}
+		}
+		for (int id : room.offlineClientIds()) {
+			if (id != fromId) {
+				inbox.add(users.name(id), message);
+			}
+		}
+	}
+
+	/**
+	 * Sends a message to a client. If it is logged out, the message is kept
+	 * until it logs in.
 	 * 
 	 * @param to
 	 *            the client to whom we send the message.
@@ -98,48 +376,96 @@ public class Server implements IMessageHandler {
 	 *            the message to send.
 	 */
 	public void send(String to, IMessage message) {
-		if (!clients.containsKey(to)) {
-			// there is no such client, so we create one
-			clients.put(to, new ClientData());
-		}
-
-		// should always succeed
-		ClientData clientData = clients.get(to);
+		ClientData clientData = clients.computeIfAbsent(to, name -> {
+			// if there is no such client, we create one
+			ClientData $ = load(name);
+			return $ != null ? $ : new ClientData();
+		});
 
 		if (clientData.isOnline()) {
-			new Thread(new Runnable() {
+			outbound.send(to, message);
+		} else {
+			inbox.add(to, message);
+		}
+	}
 
-				@Override
-				public void run() {
-					communicator.send(to, message, false);
+	/**
+	 * Sends the reply to a request, with the request's id if it was sent in a
+	 * CorrelatedRequest.
+	 * 
+	 * @param to
+	 *            the client that sent the request.
+	 * @param request
+	 *            the request replied to.
+	 * @param reply
+	 *            the reply.
+	 */
+	private void reply(String to, IMessage request, IMessage reply) {
+		Long id = requestIds.remove(request);
+		send(to, id == null ? reply : new CorrelatedReply(id, reply));
+	}
 
-				}
-			}).start();
+	/**
+	 * Tells a client that its request failed, unless it was already replied
+	 * to (or wasn't sent in a CorrelatedRequest), so it doesn't wait for the
+	 * reply forever.
+	 * 
+	 * @param to
+	 *            the client that sent the request.
+	 * @param request
+	 *            the request that failed.
+	 */
+	private void failed(String to, IMessage request) {
+		Long id = requestIds.remove(request);
+		if (id != null) {
+			send(to, new CorrelatedReply(id, null));
 		}
 	}
 
 	// ***************************************************************
 
+	@Override
+	public void handle(CorrelatedRequest message) {
+		requestIds.put(message.request, message.id);
+		try {
+			message.request.handle(this);
+		} catch (RuntimeException e) {
+			failed(message.who, message.request);
+			throw e;
+		}
+	}
+
 	@Override
 	public void handle(AllRoomsRequest message) {
+		onClient(message.who, message, () -> allRooms(message));
+	}
 
+	private void allRooms(AllRoomsRequest message) {
 		List<String> rooms = new ArrayList<>();
-		rooms.addAll(onlineRooms.keySet());
-		send(message.who, new AllRoomsReply(rooms));
+		rooms.addAll(onlineRooms);
+		reply(message.who, message, new AllRoomsReply(rooms));
 	}
 
 	@Override
 	public void handle(MyOnlineRoomsRequest message) {
-		List<String> rooms = new ArrayList<>(clients.get(message.who)
-				.getRooms().keySet());
+		onClient(message.who, message, () -> myOnlineRooms(message));
+	}
+
+	private void myOnlineRooms(MyOnlineRoomsRequest message) {
+		List<String> rooms = new ArrayList<>(client(message.who).getRooms()
+				.keySet());
 
-		send(message.who, new MyOnlineRoomsReply(rooms));
+		reply(message.who, message, new MyOnlineRoomsReply(rooms));
 	}
 
 	@Override
 	public void handle(ClientsInRoomRequest message) {
+		onClient(message.who, message, () -> clientsInRoom(message));
+	}
 
-		Room room = onlineRooms.get(message.room);
+	private void clientsInRoom(ClientsInRoomRequest message) {
+		Room room = onlineRooms.contains(message.room) ? room(message.room)
+				: null;
 
 		List<String> clients;
 		if (room == null) {
@@ -147,119 +473,269 @@ public class Server implements IMessageHandler {
 		} else {
 			clients = room.getOnlineClients();
 		}
-		send(message.who, new ClientsInRoomReply(message.room, clients));
+		reply(message.who, message, new ClientsInRoomReply(message.room,
+				clients));
 	}
 
 	@Override
 	public void handle(JoinRoomRequest message) {
-		ClientData clientData = clients.get(message.who);
+		onRoom(message.who, message, message.room, () -> join(message));
+	}
 
-		if (clientData.getRooms().containsKey(message.room)) {
-			send(message.who, new JoinRoomReply(
-					ErrorCode.AlreadyInRoomException));
-			return;
-		}
+	private void join(JoinRoomRequest message) {
+		synchronized (userLock(message.who)) {
+			ClientData clientData = client(message.who);
 
-		Room room = allRooms.get(message.room);
-		if (room == null) {
-			room = new Room(message.room);
-			allRooms.put(message.room, room);
-		}
-		clientData.addRoom(message.room, room);
-		room.addClient(message.who, clientData);
+			if (clientData.getRooms().containsKey(message.room)) {
+				reply(message.who, message, new JoinRoomReply(
+						ErrorCode.AlreadyInRoomException));
+				return;
+			}
 
-		if (room.hasLoggedInUsers()) {
-			onlineRooms.put(message.room, room);
+			while (true) {
+				Room room = allRooms.computeIfAbsent(message.room, name -> {
+					Room $ = membership.readRoom(name, users);
+					return $ != null ? $ : new Room(name, users);
+				});
+				synchronized (room) {
+					if (allRooms.get(message.room) != room) {
+						// it was emptied (and dropped) meanwhile.
+						continue;
+					}
+					room.addClient(users.intern(message.who));
+					membership.saveRoom(room);
+					if (room.hasLoggedInUsers()) {
+						onlineRooms.add(message.room);
+					}
+					clientData.addRoom(message.room, room);
+					membership.saveClient(message.who, clientData);
+
+					reply(message.who, message, new JoinRoomReply(
+							ErrorCode.Success));
+					sendToRoom(message.who, room, new OurRoomAnnouncement(
+							message.who, message.room, Announcement.JOIN));
+				}
+				return;
+			}
 		}
-
-		send(message.who, new JoinRoomReply(ErrorCode.Success));
-		sendToRoom(message.who, message.room, new OurRoomAnnouncement(
-				message.who, message.room, Announcement.JOIN));
 	}
 
 	@Override
 	public void handle(LeaveRoomRequest message) {
-		ClientData clientData = clients.get(message.who);
+		onRoom(message.who, message, message.room, () -> leave(message));
+	}
 
-		if (!clientData.getRooms().containsKey(message.room)) {
-			send(message.who, new LeaveRoomReply(ErrorCode.NotInRoomException));
-			return;
-		}
+	private void leave(LeaveRoomRequest message) {
+		synchronized (userLock(message.who)) {
+			ClientData clientData = client(message.who);
 
-		Room room = allRooms.get(message.room);
+			if (!clientData.getRooms().containsKey(message.room)) {
+				reply(message.who, message, new LeaveRoomReply(
+						ErrorCode.NotInRoomException));
+				return;
+			}
 
-		room.removeClient(message.who);
-		if (!room.hasLoggedInUsers()) {
-			onlineRooms.remove(message.room);
+			Room room = clientData.getRooms().get(message.room);
+			synchronized (room) {
+				room.removeClient(users.intern(message.who));
+				if (!room.hasLoggedInUsers()) {
+					onlineRooms.remove(message.room);
+				}
+				membership.saveRoom(room);
+				clientData.removeRoom(message.room);
+				membership.saveClient(message.who, clientData);
+
+				reply(message.who, message, new LeaveRoomReply(
+						ErrorCode.Success));
+
+				// no one to send announcement to.
+				if (room.isEmpty()) {
+					allRooms.remove(message.room, room);
+					history.clear(message.room);
+
+					// send announcement.
+				} else {
+					sendToRoom(message.who, room, new OurRoomAnnouncement(
+							message.who, message.room, Announcement.LEAVE));
+				}
+			}
 		}
-		clientData.removeRoom(message.room);
+	}
 
-		send(message.who, new LeaveRoomReply(ErrorCode.Success));
+	@Override
+	public void handle(LogoutRequestMessage message) {
+		onClient(message.who, message, () -> logout(message));
+	}
 
-		// no one to send announcement to.
-		if (room.isEmpty()) {
-			allRooms.remove(message.room);
+	private void logout(LogoutRequestMessage message) {
+		synchronized (userLock(message.who)) {
+			ClientData clientData = client(message.who);
+			clientData.setOnline(false);
+			membership.saveClient(message.who, clientData);
+
+			for (Room room : clientData.getRooms().values()) {
+				synchronized (room) {
+					room.onClientLogout(users.intern(message.who));
+					membership.saveRoom(room);
+					if (!room.hasLoggedInUsers()) {
+						onlineRooms.remove(room.name);
+					}
+				}
+				announce(room, message.who, Announcement.DISCONNECT);
+			}
 
-			// send announcement.
-		} else {
-			sendToRoom(message.who, message.room, new OurRoomAnnouncement(
-					message.who, message.room, Announcement.LEAVE));
+			// it is loaded again when it logs in.
+			clients.remove(message.who);
 		}
 	}
 
 	@Override
-	public void handle(LogoutRequestMessage message) {
-		ClientData clientData = clients.get(message.who);
-		clientData.setOnline(false);
+	public void handle(LoginRequestMessage message) {
+		onClient(message.who, message, () -> login(message));
+	}
 
-		for (Room room : clientData.getRooms().values()) {
-			room.onClientLogout(message.who);
-			if (!room.hasLoggedInUsers()) {
-				onlineRooms.remove(room.name);
+	private void login(LoginRequestMessage message) {
+		synchronized (userLock(message.who)) {
+			ClientData clientData = clients.computeIfAbsent(message.who,
+					name -> {
+						ClientData $ = load(name);
+						return $ != null ? $ : new ClientData();
+					});
+			clientData.setOnline(true);
+			membership.saveClient(message.who, clientData);
+
+			for (Room room : clientData.getRooms().values()) {
+				synchronized (room) {
+					room.onClientLogin(users.intern(message.who));
+					membership.saveRoom(room);
+					if (room.hasLoggedInUsers()) {
+						onlineRooms.add(room.name);
+					}
+				}
+				announce(room, message.who, Announcement.JOIN);
 			}
-			sendToRoom(message.who, room.name, new OurRoomAnnouncement(
-					message.who, room.name, Announcement.DISCONNECT));
+
+			// only now nothing more is added to the inbox, so nothing is left
+			// in it (but a message sent while the rooms were being updated may
+			// arrive before older ones).
+			sendMissed(message.who);
 		}
 	}
 
-	@Override
-	public void handle(LoginRequestMessage message) {
-		ClientData clientData = clients.get(message.who);
-		if (clientData == null) {
-			clientData = new ClientData();
-			clients.put(message.who, clientData);
+	/**
+	 * Announces a client logging in or out to the (other) clients of a room.
+	 * Its presence in the room was already changed (right away, so requests
+	 * that follow see it), while the announcement is sent on the room's actor,
+	 * in order with the rest of the messages to the room.
+	 */
+	private void announce(Room room, String who, Announcement type) {
+		Runnable announcement = () -> {
+			synchronized (room) {
+				sendToRoom(who, room, new OurRoomAnnouncement(who, room.name,
+						type));
+			}
+		};
+		if (roomActors == null) {
+			announcement.run();
+			return;
 		}
-		clientData.setOnline(true);
+		roomActors.tell(room.name, announcement).whenComplete((v, e) -> {
+			if (e != null) {
+				logFailure("failed announcing " + who + " in " + room.name, e);
+			}
+		});
+	}
 
-		for (Room room : clientData.getRooms().values()) {
-			room.onClientLogin(message.who, clientData);
-			if (room.hasLoggedInUsers()) {
-				onlineRooms.put(room.name, room);
+	/**
+	 * Sends a client the messages kept in its inbox while it was logged out.
+	 * They are sent directly, rather than by the OutboundSender (which may
+	 * drop them), and removed from the inbox only once delivered. The batches
+	 * arrive in order, so once one is delivered, so are all of the messages
+	 * before it.
+	 */
+	private void sendMissed(String who) {
+		OfflineInbox.Pending missed = inbox.take(who);
+		List<IMessage> messages = missed.messages;
+		for (int i = 0; i < messages.size(); i += OutboundSender.MAX_BATCH_SIZE) {
+			int end = Math.min(messages.size(), i
+					+ OutboundSender.MAX_BATCH_SIZE);
+			long delivered = missed.first + end;
+			CompletableFuture<Void> sent;
+			try {
+				sent = communicator.sendAsync(who,
+						new MessageBatch(messages.subList(i, end)), false);
+			} catch (RuntimeException e) {
+				inbox.undelivered(who);
+				throw e;
 			}
-			sendToRoom(message.who, room.name, new OurRoomAnnouncement(
-					message.who, room.name, Announcement.JOIN));
+			sent.whenComplete((v, e) -> {
+				if (e == null) {
+					inbox.delivered(who, delivered);
+				} else {
+					inbox.undelivered(who);
+				}
+			});
 		}
 	}
 
 	@Override
 	public void handle(OurChatMessage message) {
-		// if the client is not in the room
-		ClientData clientData = clients.get(message.who);
-		if (!clientData.getRooms().containsKey(message.room)) {
-			send(message.who, new OurChatMessageReply(
+		onRoom(message.who, message, message.room, () -> chat(message));
+	}
+
+	private void chat(OurChatMessage message) {
+		// if the client is not in the room (the room knows, so the client
+		// doesn't have to be loaded). checked again holding the room, since
+		// the client may leave it (or it may be emptied and dropped)
+		// meanwhile.
+		Room room = room(message.room);
+		int who = users.intern(message.who);
+		if (room == null || !room.hasClient(who)) {
+			reply(message.who, message, new OurChatMessageReply(
 					ErrorCode.NotInRoomException));
 			return;
 		}
 
-		// otherwise, the client can send the message to the room
-		send(message.who, new OurChatMessageReply(ErrorCode.Success));
-		sendToRoom(message.who, message.room, message);
+		// otherwise, the client can send the message to the room. it is kept
+		// and sent while holding the room, so everyone gets the room's
+		// messages in the same order as its history.
+		synchronized (room) {
+			if (allRooms.get(message.room) != room || !room.hasClient(who)) {
+				reply(message.who, message, new OurChatMessageReply(
+						ErrorCode.NotInRoomException));
+				return;
+			}
+			history.add(message);
+			reply(message.who, message, new OurChatMessageReply(
+					ErrorCode.Success));
+			sendToRoom(message.who, room, message);
+		}
 	}
 
-	public void saveData() {
+	@Override
+	public void handle(RoomHistoryRequest message) {
+		onClient(message.who, message, () -> roomHistory(message));
+	}
+
+	private void roomHistory(RoomHistoryRequest message) {
+		ClientData clientData = client(message.who);
+		if (!clientData.getRooms().containsKey(message.room)) {
+			reply(message.who, message, new RoomHistoryReply(
+					ErrorCode.NotInRoomException, new ArrayList<>(),
+					RoomHistoryReply.NO_MORE));
+			return;
+		}
 
-		ServerData data = new ServerData(clients, allRooms, onlineRooms);
-		communicator.saveObjectToFile(myAddress, data);
+		reply(message.who, message,
+				history.page(message.room, message.before, message.limit));
+	}
+
+	/**
+	 * Writes the saved state to the storage device (it is saved as it
+	 * changes, so this only matters if the machine may crash).
+	 */
+	public void saveData() {
+		membership.force();
 	}
 
 	public void removeData() {
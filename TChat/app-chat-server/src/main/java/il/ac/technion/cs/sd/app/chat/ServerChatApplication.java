@@ -30,6 +30,14 @@ public class ServerChatApplication {
 		return myAddress;
 	}
 	
+	/**
+	 * Sets the number of threads on which the rooms run as actors, from the next start (0, the
+	 * default, doesn't run the rooms as actors).
+	 */
+	public void setRoomActors(int threads) {
+		server.setRoomActors(threads);
+	}
+	
 	/**
 	 * Starts the server; any previously sent mails, data and indices are loaded.
 	 * This should be a <b>non-blocking</b> call.
@@ -44,7 +52,6 @@ public class ServerChatApplication {
 	public void stop() {
 
 		server.stop();
-		server.saveData();
 	}
 	
 	/**
@@ -0,0 +1,70 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Gives each name a small int id (0, 1, 2, ... in the order the names are
+ * first seen), so sets of names can be kept as sets of ints. Ids only mean
+ * something within the process (they aren't saved).
+ *
+ * Ids are never released (a room may still keep the id of a logged out
+ * client), so a bit set of ids is as long as the largest id in it, rather
+ * than its number of members: with n names, each of a room's bit sets may
+ * take up to n bits (125KB at a million users). Recycling the ids of logged
+ * out clients would bound it by the users online, but then every room would
+ * have to be told when an id changes owner.
+ *
+ * This class is thread-safe; name(id) doesn't lock.
+ */
+public class SymbolTable {
+
+	private final Map<String, Integer> ids = new HashMap<>();
+
+	/**
+	 * names[id] is the name whose id is 'id'. Only the cell of the next id
+	 * (at 'size') is ever written in place, before that id is handed out;
+	 * when the array has to grow it is replaced by a bigger copy.
+	 * Since the array is volatile and written after the cell, a thread that
+	 * got an id (through intern or id, which lock) reads its name without
+	 * locking.
+	 */
+	private volatile String[] names = new String[16];
+
+	private int size = 0;
+
+	/**
+	 * @return the id of a name, giving it a new one if it has none.
+	 */
+	public synchronized int intern(String name) {
+		Integer $ = ids.get(name);
+		if ($ != null) {
+			return $;
+		}
+		String[] current = names;
+		if (size == current.length) {
+			current = Arrays.copyOf(current, size * 2);
+		}
+		current[size] = name;
+		names = current;
+		ids.put(name, size);
+		return size++;
+	}
+
+	/**
+	 * @return the id of a name, or -1 if it has none.
+	 */
+	public synchronized int id(String name) {
+		Integer $ = ids.get(name);
+		return $ == null ? -1 : $;
+	}
+
+	/**
+	 * @return the name whose id is 'id'.
+	 */
+	public String name(int id) {
+		return names[id];
+	}
+
+}
@@ -0,0 +1,128 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import static org.junit.Assert.*;
+
+import il.ac.technion.cs.sd.app.chat.OutboundSender.OverflowPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OutboundSenderTest {
+
+	@Test(timeout = 5000)
+	public void messagesToTheSameClientKeepTheirOrder() throws Exception {
+		Map<String, List<IMessage>> received = new ConcurrentHashMap<>();
+		OutboundSender sender = new OutboundSender((to, message) -> {
+			List<IMessage> receivedByTo = received.computeIfAbsent(to,
+					x -> Collections.synchronizedList(new ArrayList<>()));
+			if (message instanceof MessageBatch) {
+				receivedByTo.addAll(((MessageBatch) message).messages);
+			} else {
+				receivedByTo.add(message);
+			}
+			return CompletableFuture.completedFuture(null);
+		}, 4, 1000, OverflowPolicy.BLOCK);
+
+		List<IMessage> toA = new ArrayList<>();
+		List<IMessage> toB = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			toA.add(new AllRoomsRequest("a" + i));
+			toB.add(new AllRoomsRequest("b" + i));
+			sender.send("a", toA.get(i));
+			sender.send("b", toB.get(i));
+		}
+		sender.shutdown(4000);
+
+		assertEquals(toA, received.get("a"));
+		assertEquals(toB, received.get("b"));
+	}
+
+	@Test(timeout = 5000)
+	public void waitingMessagesAreSentAsOneBatch() throws Exception {
+		CountDownLatch firstSendStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		List<IMessage> sent = Collections.synchronizedList(new ArrayList<>());
+		OutboundSender sender = new OutboundSender((to, message) -> {
+			sent.add(message);
+			firstSendStarted.countDown();
+			try {
+				release.await(4, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return CompletableFuture.completedFuture(null);
+		}, 1, 100, OverflowPolicy.BLOCK);
+
+		IMessage first = new AllRoomsRequest("0");
+		sender.send("a", first);
+		firstSendStarted.await();
+		List<IMessage> rest = new ArrayList<>();
+		for (int i = 1; i <= 3; i++) {
+			rest.add(new AllRoomsRequest("" + i));
+			sender.send("a", rest.get(i - 1));
+		}
+		release.countDown();
+		sender.shutdown(4000);
+
+		assertEquals(2, sent.size());
+		assertSame(first, sent.get(0));
+		assertEquals(rest, ((MessageBatch) sent.get(1)).messages);
+	}
+
+	@Test(timeout = 5000)
+	public void messagesAreDroppedWhenFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		OutboundSender sender = new OutboundSender((to, message) -> {
+			try {
+				release.await(4, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return CompletableFuture.completedFuture(null);
+		}, 1, 2, OverflowPolicy.DROP);
+
+		assertTrue(sender.send("a", new AllRoomsRequest("a")));
+		assertTrue(sender.send("a", new AllRoomsRequest("a")));
+		assertFalse(sender.send("b", new AllRoomsRequest("b")));
+
+		release.countDown();
+		sender.shutdown(4000);
+	}
+
+	@Test(timeout = 5000)
+	public void aClientThatReceivesNothingDoesntHoldUpTheOthers()
+			throws Exception {
+		BlockingQueue<IMessage> receivedByA = new LinkedBlockingQueue<>();
+		OutboundSender sender = new OutboundSender((to, message) -> {
+			if (to.equals("dead")) {
+				return new CompletableFuture<>();
+			}
+			receivedByA.add(message);
+			return CompletableFuture.completedFuture(null);
+		}, 1, 1000, OverflowPolicy.BLOCK, 200);
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(sender.send("dead", new AllRoomsRequest("dead")));
+			Thread.sleep(1);
+		}
+		IMessage toA = new AllRoomsRequest("a");
+		assertTrue(sender.send("a", toA));
+		assertSame(toA, receivedByA.take());
+
+		// once it is taken for dead, messages to it are discarded.
+		Thread.sleep(300);
+		assertFalse(sender.send("dead", new AllRoomsRequest("dead")));
+		sender.shutdown(0);
+	}
+
+}
@@ -0,0 +1,69 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RoomActorsTest {
+
+	@Test(timeout = 5000)
+	public void tasksOfTheSameRoomRunInOrder() throws Exception {
+		RoomActors actors = new RoomActors(4);
+		List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+		List<Integer> expected = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			int task = i;
+			expected.add(task);
+			actors.tell("room", () -> ran.add(task));
+		}
+		actors.shutdown(4000);
+
+		assertEquals(expected, ran);
+	}
+
+	@Test(timeout = 5000)
+	public void aBusyRoomDoesntStopOtherRooms() throws Exception {
+		RoomActors actors = new RoomActors(2);
+		CountDownLatch release = new CountDownLatch(1);
+		actors.tell("busy", () -> {
+			try {
+				release.await(4, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		});
+
+		actors.tell("other", () -> {}).get();
+
+		release.countDown();
+		actors.shutdown(4000);
+	}
+
+	@Test(timeout = 5000)
+	public void aTaskThatFailsDoesntStopItsRoom() throws Exception {
+		RoomActors actors = new RoomActors(1);
+		CompletableFuture<Void> failed = actors.tell("room", () -> {
+			throw new AssertionError("the task failed");
+		});
+
+		actors.tell("room", () -> {}).get();
+		assertTrue(failed.isCompletedExceptionally());
+		actors.shutdown(4000);
+	}
+
+	@Test(timeout = 5000)
+	public void tasksGivenAfterShutdownFail() throws Exception {
+		RoomActors actors = new RoomActors(1);
+		actors.shutdown(0);
+
+		assertTrue(actors.tell("room", () -> {}).isCompletedExceptionally());
+	}
+
+}
@@ -2,11 +2,13 @@ package il.ac.technion.cs.sd.app.chat;
 
 import static org.junit.Assert.*;
 import il.ac.technion.cs.sd.app.chat.RoomAnnouncement.Announcement;
+import il.ac.technion.cs.sd.lib.clientserver.SharedConnection;
 
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 
@@ -19,7 +21,7 @@ public class OurTChatTest {
 	private static final String ROOM = "room";
 	private static final String SERVER_ADDRESS = "Server";
 
-	private ServerChatApplication server = new ServerChatApplication(
+	protected ServerChatApplication server = new ServerChatApplication(
 			SERVER_ADDRESS);
 	private Collection<ClientChatApplication> clients = new LinkedList<>();
 
@@ -143,6 +145,147 @@ public class OurTChatTest {
 		itay.logout();
 	}
 
+	@Test(timeout = 10000)
+	public void aNewServerShouldReplayTheRoomsJoinedBeforeItStarted()
+			throws Exception {
+		ClientChatApplication itay = loginUser(ITAY);
+		itay.joinRoom(ROOM);
+		itay.logout();
+
+		// a new server, that only has what the previous one persisted
+		server.stop();
+		server = new ServerChatApplication(SERVER_ADDRESS);
+		server.start();
+
+		itay.login(x -> messages.get(ITAY).add(x), x -> announcements.get(ITAY)
+				.add(x));
+
+		assertEquals(Arrays.asList(ROOM), itay.getJoinedRooms());
+
+		itay.logout();
+	}
+
+	@Test(timeout = 10000)
+	public void messagesSentWhileLoggedOutShouldArriveOnLogin()
+			throws Exception {
+		ClientChatApplication itay = loginUser(ITAY);
+		ClientChatApplication avner = loginUser(AVNER);
+		itay.joinRoom(ROOM);
+		avner.joinRoom(ROOM);
+		itay.logout();
+
+		avner.sendMessage(ROOM, "one");
+		avner.sendMessage(ROOM, "two");
+		announcements.get(ITAY).clear();
+		itay.login(x -> messages.get(ITAY).add(x), x -> announcements.get(ITAY)
+				.add(x));
+
+		assertEquals(new ChatMessage(AVNER, ROOM, "one"), messages.get(ITAY)
+				.take());
+		assertEquals(new ChatMessage(AVNER, ROOM, "two"), messages.get(ITAY)
+				.take());
+
+		itay.logout();
+		avner.logout();
+	}
+
+	@Test(timeout = 10000)
+	public void roomHistoryShouldBeReadPageByPage() throws Exception {
+		ClientChatApplication itay = loginUser(ITAY);
+		itay.joinRoom(ROOM);
+		for (int i = 0; i < 5; i++) {
+			itay.sendMessage(ROOM, "" + i);
+		}
+
+		HistoryPage page = itay.getRoomHistory(ROOM, RoomHistoryRequest.LATEST,
+				3);
+		assertEquals(Arrays.asList(new ChatMessage(ITAY, ROOM, "2"),
+				new ChatMessage(ITAY, ROOM, "3"), new ChatMessage(ITAY, ROOM,
+						"4")), page.messages);
+		assertTrue(page.hasMore());
+
+		page = itay.getRoomHistory(ROOM, page.before, 3);
+		assertEquals(Arrays.asList(new ChatMessage(ITAY, ROOM, "0"),
+				new ChatMessage(ITAY, ROOM, "1")), page.messages);
+		assertFalse(page.hasMore());
+
+		itay.logout();
+	}
+
+	@Test(timeout = 10000)
+	public void roomHistoryPagesShouldNeverBeEmptyWhileThereIsMore()
+			throws Exception {
+		ClientChatApplication itay = loginUser(ITAY);
+		itay.joinRoom(ROOM);
+		itay.sendMessage(ROOM, "0");
+		itay.sendMessage(ROOM, "1");
+
+		HistoryPage page = itay.getRoomHistory(ROOM, RoomHistoryRequest.LATEST,
+				0);
+		assertEquals(Arrays.asList(new ChatMessage(ITAY, ROOM, "1")),
+				page.messages);
+		page = itay.getRoomHistory(ROOM, page.before, 0);
+		assertEquals(Arrays.asList(new ChatMessage(ITAY, ROOM, "0")),
+				page.messages);
+		assertFalse(page.hasMore());
+
+		itay.logout();
+	}
+
+	@Test(timeout = 10000)
+	public void usersSharingAConnectionShouldChatAsSeparateClients()
+			throws Exception {
+		SharedConnection connection = new SharedConnection("Gateway",
+				MessageCodecs.BINARY);
+		connection.start();
+		ClientChatApplication itay = new ClientChatApplication(
+				server.getAddress(), ITAY, connection);
+		ClientChatApplication avner = new ClientChatApplication(
+				server.getAddress(), AVNER, connection);
+		BlockingQueue<ChatMessage> itaysMessages = new LinkedBlockingQueue<>();
+		itay.login(itaysMessages::add, x -> {});
+		avner.login(x -> {}, x -> {});
+
+		itay.joinRoom(ROOM);
+		avner.joinRoom(ROOM);
+		assertEquals(Arrays.asList(ITAY, AVNER), itay.getClientsInRoom(ROOM));
+		avner.sendMessage(ROOM, "Hi all");
+		assertEquals(new ChatMessage(AVNER, ROOM, "Hi all"),
+				itaysMessages.take());
+
+		itay.logout();
+		avner.logout();
+		connection.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void asyncOperationsShouldBePipelined() throws Exception {
+		ClientChatApplication itay = loginUser(ITAY);
+		ClientChatApplication avner = loginUser(AVNER);
+		CompletableFuture<Void> joined = itay.joinRoomAsync(ROOM);
+		CompletableFuture<Void> joinedAgain = itay.joinRoomAsync(ROOM);
+		CompletableFuture<List<String>> rooms = itay.getJoinedRoomsAsync();
+		CompletableFuture<Void> sent = avner.sendMessageAsync(ROOM, "Hi");
+
+		joined.get();
+		try {
+			joinedAgain.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof AlreadyInRoomException);
+		}
+		assertEquals(Arrays.asList(ROOM), rooms.get());
+		try {
+			sent.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NotInRoomException);
+		}
+
+		itay.logout();
+		avner.logout();
+	}
+
 	@Test(timeout = 10000)
 	public void leavingARoomImNotInShouldFail() throws Exception {
 		ClientChatApplication itay = loginUser(ITAY);
@@ -0,0 +1,17 @@
+package il.ac.technion.cs.sd.app.chat;
+
+import org.junit.Before;
+
+/**
+ * Runs all of the tests of OurTChatTest on a server whose rooms run as actors.
+ */
+public class OurTChatWithRoomActorsTest extends OurTChatTest {
+
+	@Override
+	@Before
+	public void setUp() {
+		server.setRoomActors(4);
+		super.setUp();
+	}
+
+}
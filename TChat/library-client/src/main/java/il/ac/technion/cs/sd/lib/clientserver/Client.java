@@ -3,6 +3,7 @@ package il.ac.technion.cs.sd.lib.clientserver;
 import il.ac.technion.cs.sd.msg.MessengerException;
 
 import java.lang.reflect.Type;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 /**
@@ -21,7 +22,11 @@ public class Client {
 
 	private String _serverAddress;
 	private ReliableHost _reliableHost;
-	private boolean isCommunicatorStopped;
+	private Codec _codec;
+	private volatile boolean isCommunicatorStopped;
+	
+	// The address of this client, when it is carried by a SharedConnection (null otherwise).
+	private String _channel;
 	
 	/**
 	 * Creates a new client.
@@ -31,7 +36,35 @@ public class Client {
 	 */
 	public Client(String address)
 	{
-		_reliableHost = new ReliableHost(address);
+		this(address, Utils.getDefaultCodec());
+	}
+	
+	/**
+	 * Creates a new client, that encodes the messages it sends/receives with a given codec.
+	 * A call to {@link #start(String, Consumer, Type)} must be made before sending/receiving any 
+	 * messages with this client.
+	 * @param address The address of the new client.
+	 * @param codec The codec to encode messages with. The server must use the same kind of codec.
+	 */
+	public Client(String address, Codec codec)
+	{
+		_codec = codec;
+		_reliableHost = new ReliableHost(address, codec);
+	}
+	
+	/**
+	 * Creates a new client, that sends and receives its messages through a shared connection 
+	 * (with the connection's codec). The server sees it as a client whose address is 'address'.
+	 * A call to {@link #start(String, Consumer)} must be made before sending/receiving any 
+	 * messages with this client, after the connection is started.
+	 * @param address The address of the new client.
+	 * @param connection The connection carrying the messages of the client.
+	 */
+	public Client(String address, SharedConnection connection)
+	{
+		_codec = connection.getCodec();
+		_reliableHost = connection.getReliableHost();
+		_channel = address;
 	}
 	
 	/**
@@ -39,9 +72,31 @@ public class Client {
 	 */
 	public String getAddress()
 	{
-		return _reliableHost.getAddress();
+		return _channel != null ? _channel : _reliableHost.getAddress();
 	}
 	
+	/**
+	 * Sets how long a message sent waits for more messages to be sent with it in a single frame,
+	 * in milisec. The default, 0, only batches messages sent while a previous frame is being 
+	 * transmitted.
+	 */
+	public void setLinger(long millis)
+	{
+		_reliableHost.setLinger(millis);
+	}
+
+	/**
+	 * Sets whether the messages received are consumed on a small pool of threads shared by all
+	 * clients in the process, instead of on a listen thread of this client (false by default).
+	 * Lets a process run very many clients. Must be called before {@link #start(String, Consumer)}.
+	 * When set, the consumer must return quickly, since other clients may be waiting for its thread.
+	 * @throws InvalidOperation When the listen loop is running.
+	 */
+	public void setSharedListening(boolean shared)
+	{
+		_reliableHost.setSharedListening(shared);
+	}
+
 	
 	/**
 	 * Starts listening for incoming messages from the server. You can't use the client for any
@@ -61,9 +116,17 @@ public class Client {
 		_serverAddress = serverAddress;
 		
 		try {
-			_reliableHost.start((fromAddress,data) -> {
-				consumer.accept(Utils.fromXStreamerStrToObject(data));
-			});
+			if (_channel != null)
+			{
+				_reliableHost.openChannel(_channel, (fromAddress,data) -> {
+					consumer.accept(_codec.decode(data));
+				});
+			} else
+			{
+				_reliableHost.start((fromAddress,data) -> {
+					consumer.accept(_codec.decode(data));
+				});
+			}
 		} catch (MessengerException e) {
 			_serverAddress = originalServerAddress;
 			throw new CommunicationFailure(e.getMessage());
@@ -79,7 +142,13 @@ public class Client {
 	 */
 	public void stopListenLoop()
 	{
-		_reliableHost.stop();
+		if (_channel != null)
+		{
+			_reliableHost.closeChannel(_channel);
+		} else
+		{
+			_reliableHost.stop();
+		}
 		isCommunicatorStopped = true;
 	}
 
@@ -89,9 +158,21 @@ public class Client {
 	 * Parametric types of data are not supported.
 	 */
 	public void send(Object data) {
+		sendAsync(data);
+	}
+	
+	
+	/**
+	 * Sends a message to the server, without waiting for it to be delivered.
+	 * @param data The object to be sent to the server (as message data).
+	 * Parametric types of data are not supported.
+	 * @return A future completed once the server received the message (or completed exceptionally
+	 * with CommunicationFailure if the client is stopped first).
+	 */
+	public CompletableFuture<Void> sendAsync(Object data) {
 		try {
-			String payload = Utils.fromObjectToXStreamerStr(data);
-			_reliableHost.send(_serverAddress, payload, false);
+			String payload = _codec.encode(data);
+			return _reliableHost.send(_serverAddress, payload, false, _channel);
 		} catch (MessengerException e) {
 			throw new InvalidOperation();
 		} 
@@ -111,15 +192,35 @@ public class Client {
 	{
 		try {
 			String str = _reliableHost.sendAndBlockUntilResponseArrives(
-					_serverAddress, Utils.fromObjectToXStreamerStr(data));
+					_serverAddress, _codec.encode(data), _channel);
 			
-			return Utils.fromXStreamerStrToObject(str);
+			return _codec.decode(str);
 		} catch (MessengerException e) {
 			throw new InvalidOperation();
 		}
 		
 	}
 	
+	
+	/**
+	 * Sends a message to the server, without blocking until a response message is received.
+	 * Unlike {@link #sendAndBlockUntilResponseArrives(Object)}, any number of requests can be 
+	 * awaiting their responses at the same time.
+	 * @param data The object to be sent to the server (as message data).
+	 * @return A future completed with the response message data (or completed exceptionally with 
+	 * CommunicationFailure if the client is stopped before the response arrives).
+	 * The response is guaranteed to be the response to the message sent by this method.
+	 */
+	public CompletableFuture<Object> requestAsync(Object data)
+	{
+		try {
+			return _reliableHost.request(_serverAddress, _codec.encode(data), _channel)
+					.thenApply(_codec::decode);
+		} catch (MessengerException e) {
+			throw new InvalidOperation();
+		}
+	}
+	
 	@Override
 	public String toString() {
 
@@ -0,0 +1,82 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import il.ac.technion.cs.sd.msg.MessengerException;
+
+/**
+ * A single connection carrying the messages of many clients (e.g., the users of a gateway), with
+ * the address of its own.
+ *
+ * Clients created with {@link Client#Client(String, SharedConnection)} send and receive through it,
+ * each with its own address: the server sees (and replies to) each of them as a separate client,
+ * while they all share this connection's messenger, listen thread and retransmissions.
+ *
+ * The connection must be started before starting any of its clients.
+ */
+public class SharedConnection {
+
+	private final ReliableHost _reliableHost;
+	private final Codec _codec;
+
+	/**
+	 * Creates a new connection.
+	 * @param address The address of the new connection.
+	 */
+	public SharedConnection(String address)
+	{
+		this(address, Utils.getDefaultCodec());
+	}
+
+	/**
+	 * Creates a new connection, that encodes the messages of its clients with a given codec.
+	 * @param address The address of the new connection.
+	 * @param codec The codec to encode messages with. The server must use the same kind of codec.
+	 */
+	public SharedConnection(String address, Codec codec)
+	{
+		_codec = codec;
+		_reliableHost = new ReliableHost(address, codec);
+	}
+
+	/**
+	 * returns the address of this connection.
+	 */
+	public String getAddress()
+	{
+		return _reliableHost.getAddress();
+	}
+
+	/**
+	 * Starts listening for incoming messages for the clients of this connection.
+	 * @throws InvalidOperation When the connection is already started.
+	 */
+	public void start()
+	{
+		try {
+			_reliableHost.start((fromAddress, data) -> {
+				Utils.DEBUG_LOG_LINE("message to no client of " + getAddress() + " dropped");
+			});
+		} catch (MessengerException e) {
+			throw new CommunicationFailure(e.getMessage());
+		}
+	}
+
+	/**
+	 * Stops the connection (and with it, all of its clients).
+	 * @throws InvalidOperation When the connection was not started.
+	 */
+	public void stop()
+	{
+		_reliableHost.stop();
+	}
+
+	ReliableHost getReliableHost()
+	{
+		return _reliableHost;
+	}
+
+	Codec getCodec()
+	{
+		return _codec;
+	}
+
+}
@@ -0,0 +1,72 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+/**
+ * An acknowledgement a host sends back for each frame it receives. Acknowledgements are 
+ * cumulative: an acknowledgement covers every message the recipient has received (and passed 
+ * on) so far in the sender's session, not just the messages of the frame.
+ * Acknowledgements are sent as a short textual frame (rather than a whole InnerMessage), that can't
+ * be mistaken for an encoded InnerMessage.
+ */
+class Acknowledgement {
+
+	private static final String PREFIX = "!ack:";
+
+	// All messages with a smaller seq are acknowledged.
+	final long nextSeq;
+
+	// The session the acknowledged messages were sent in (see InnerMessage.session).
+	final long session;
+
+	// The address of the host acknowledging the messages (i.e., their recipient).
+	final String fromAddress;
+
+
+	Acknowledgement(long nextSeq, long session, String fromAddress)
+	{
+		this.nextSeq = nextSeq;
+		this.session = session;
+		this.fromAddress = fromAddress;
+	}
+
+
+	/**
+	 * @return true iff 'payload' (as received from a messenger) is an acknowledgement frame.
+	 */
+	static boolean isAcknowledgement(String payload)
+	{
+		return payload.startsWith(PREFIX);
+	}
+
+
+	String toPayload()
+	{
+		return PREFIX + session + ":" + nextSeq + ":" + fromAddress;
+	}
+
+
+	/**
+	 * @param payload An acknowledgement frame (see {@link #isAcknowledgement(String)}).
+	 * @throws InvalidMessage If 'payload' is not a valid acknowledgement frame.
+	 */
+	static Acknowledgement fromPayload(String payload)
+	{
+		try {
+			int sessionEnd = payload.indexOf(':', PREFIX.length());
+			int idEnd = payload.indexOf(':', sessionEnd + 1);
+			return new Acknowledgement(
+					Long.parseLong(payload.substring(sessionEnd + 1, idEnd)),
+					Long.parseLong(payload.substring(PREFIX.length(), sessionEnd)),
+					payload.substring(idEnd + 1));
+		} catch (IndexOutOfBoundsException | NumberFormatException e) {
+			throw new InvalidMessage();
+		}
+	}
+
+
+	@Override
+	public String toString()
+	{
+		return "[ack from:" + Utils.showable(fromAddress) + ",nextSeq=" + nextSeq + "]";
+	}
+
+}
@@ -0,0 +1,252 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A compact alternative to {@link XStreamCodec}: objects are written as a tag identifying their
+ * type, followed by their fields in a binary format (see {@link BinaryWriter}). The bytes are then
+ * Base64 encoded, since Messenger only sends text.
+ * 
+ * Only objects of types registered with the codec can be encoded. Both sides must register the 
+ * same types with the same tags. Registration is not thread-safe - register all types before 
+ * using the codec (after that, the codec can be used from any number of threads).
+ */
+public class BinaryCodec implements Codec {
+
+	// Tags below this are reserved for the types of the library itself.
+	public static final int FIRST_USER_TAG = 16;
+
+	private static final int NULL_TAG = 0;
+	private static final int INNER_MESSAGE_TAG = 1;
+	private static final int FRAME_TAG = 2;
+
+	private static class Registration<T>
+	{
+		Registration(int tag, BiConsumer<T, BinaryWriter> writer, Function<BinaryReader, T> reader) {
+			this.tag = tag;
+			this.writer = writer;
+			this.reader = reader;
+		}
+
+		final int tag;
+		final BiConsumer<T, BinaryWriter> writer;
+		final Function<BinaryReader, T> reader;
+	}
+
+	private final Map<Class<?>, Registration<?>> byType = new HashMap<>();
+	private final Map<Integer, Registration<?>> byTag = new HashMap<>();
+
+
+	public BinaryCodec()
+	{
+		doRegister(INNER_MESSAGE_TAG, InnerMessage.class, 
+				BinaryCodec::writeInnerMessage, this::readInnerMessage);
+		doRegister(FRAME_TAG, Frame.class, BinaryCodec::writeFrame, this::readFrame);
+	}
+
+
+	/**
+	 * Registers a type that can be encoded by this codec.
+	 * @param tag A number identifying the type (at least {@link #FIRST_USER_TAG}). Smaller 
+	 * numbers take less space.
+	 * @param type The type registered. Objects of subclasses of 'type' must be registered separately.
+	 * @param writer Writes the fields of an object of the type.
+	 * @param reader Reads the fields written by 'writer' (in the same order), and creates the 
+	 * object.
+	 * @return This codec.
+	 */
+	public <T> BinaryCodec register(int tag, Class<T> type, BiConsumer<T, BinaryWriter> writer,
+			Function<BinaryReader, T> reader)
+	{
+		if (tag < FIRST_USER_TAG)
+			throw new IllegalArgumentException("tag " + tag + " is reserved");
+
+		doRegister(tag, type, writer, reader);
+		return this;
+	}
+
+
+	@Override
+	public String encode(Object data)
+	{
+		if (data == null) 
+			throw new IllegalArgumentException("data cannot be null");
+
+		return Base64.getEncoder().encodeToString(encodeToBytes(data));
+	}
+
+
+	@Override
+	public Object decode(String data)
+	{
+		if (data == null) 
+			throw new IllegalArgumentException("data cannot be null");
+
+		byte[] bytes;
+		try {
+			bytes = Base64.getDecoder().decode(data);
+		} catch (IllegalArgumentException e) {
+			throw new InvalidMessage();
+		}
+		return decodeFromBytes(bytes);
+	}
+
+
+	// The bytes themselves, without the Base64 encoding needed for Messenger.
+	@Override
+	public byte[] encodeToBytes(Object data)
+	{
+		if (data == null) 
+			throw new IllegalArgumentException("data cannot be null");
+
+		BinaryWriter out = new BinaryWriter(this);
+		writeObject(data, out);
+		return out.toByteArray();
+	}
+
+
+	@Override
+	public Object decodeFromBytes(byte[] data)
+	{
+		if (data == null) 
+			throw new IllegalArgumentException("data cannot be null");
+
+		BinaryReader in = new BinaryReader(this, data);
+		Object $ = readObject(in);
+		if (!in.isAtEnd())
+			throw new InvalidMessage();
+
+		return $;
+	}
+
+
+	@SuppressWarnings("unchecked")
+	<T> void writeObject(T value, BinaryWriter out)
+	{
+		if (value == null)
+		{
+			out.writeVarInt(NULL_TAG);
+			return;
+		}
+		Registration<T> r = (Registration<T>) byType.get(value.getClass());
+		if (r == null)
+			throw new IllegalArgumentException(value.getClass() + " is not registered with the codec");
+
+		out.writeVarInt(r.tag);
+		r.writer.accept(value, out);
+	}
+
+
+	Object readObject(BinaryReader in)
+	{
+		int tag = in.readVarInt();
+		if (tag == NULL_TAG)
+		{
+			return null;
+		}
+		Registration<?> r = byTag.get(tag);
+		if (r == null)
+			throw new InvalidMessage();
+
+		return r.reader.apply(in);
+	}
+
+
+	private <T> void doRegister(int tag, Class<T> type, BiConsumer<T, BinaryWriter> writer,
+			Function<BinaryReader, T> reader)
+	{
+		if (byTag.containsKey(tag) || byType.containsKey(type))
+			throw new IllegalArgumentException("tag " + tag + " or " + type + " already registered");
+
+		Registration<T> r = new Registration<>(tag, writer, reader);
+		byType.put(type, r);
+		byTag.put(tag, r);
+	}
+
+
+	/* The data of an InnerMessage is usually an object encoded by this codec as well - in which 
+	 * case it's written as the raw bytes, rather than Base64 inside Base64. */
+	private static void writeInnerMessage(InnerMessage m, BinaryWriter out)
+	{
+		out.writeNullableLong(m.messageId);
+		out.writeNullableLong(m.responseTargetId);
+		out.writeString(m.fromAddress);
+		out.writeString(m.fromChannel);
+		out.writeString(m.toChannel);
+		out.writeNullableLong(m.session);
+		out.writeNullableLong(m.seq);
+		out.writeNullableLong(m.windowBase);
+		
+		byte[] raw = null;
+		if (m.data != null && !m.data.isEmpty())
+		{
+			try {
+				raw = Base64.getDecoder().decode(m.data);
+			} catch (IllegalArgumentException e) {
+				raw = null;
+			}
+		}
+		boolean isRaw = raw != null && Base64.getEncoder().encodeToString(raw).equals(m.data);
+		out.writeBoolean(isRaw);
+		if (isRaw)
+		{
+			out.writeBytes(raw);
+		} else
+		{
+			out.writeString(m.data);
+		}
+	}
+
+
+	private InnerMessage readInnerMessage(BinaryReader in)
+	{
+		InnerMessage m = new InnerMessage();
+		m.messageId = in.readNullableLong();
+		m.responseTargetId = in.readNullableLong();
+		m.fromAddress = in.readString();
+		m.fromChannel = in.readString();
+		m.toChannel = in.readString();
+		m.session = in.readNullableLong();
+		m.seq = in.readNullableLong();
+		m.windowBase = in.readNullableLong();
+		if (in.readBoolean())
+		{
+			byte[] raw = in.readBytes();
+			m.data = raw == null ? null : Base64.getEncoder().encodeToString(raw);
+		} else
+		{
+			m.data = in.readString();
+		}
+		return m;
+	}
+
+
+	// The messages of a frame are all InnerMessages, so they're written without their tags.
+	private static void writeFrame(Frame f, BinaryWriter out)
+	{
+		out.writeVarInt(f.messages.size());
+		for (InnerMessage m : f.messages)
+		{
+			writeInnerMessage(m, out);
+		}
+	}
+
+
+	private Frame readFrame(BinaryReader in)
+	{
+		int size = in.readVarInt();
+		List<InnerMessage> messages = new ArrayList<>(Math.min(size, in.remaining()));
+		for (int i = 0; i < size; i++)
+		{
+			messages.add(readInnerMessage(in));
+		}
+		return new Frame(messages);
+	}
+
+}
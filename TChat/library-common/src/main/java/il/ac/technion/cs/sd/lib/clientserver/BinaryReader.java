@@ -0,0 +1,163 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the fields of an object encoded by {@link BinaryCodec}, in the order 
+ * {@link BinaryWriter} wrote them.
+ * All methods throw InvalidMessage if the data read is malformed.
+ */
+public class BinaryReader {
+
+	private final BinaryCodec codec;
+
+	private final byte[] data;
+
+	private int position = 0;
+
+
+	BinaryReader(BinaryCodec codec, byte[] data)
+	{
+		this.codec = codec;
+		this.data = data;
+	}
+
+
+	public int readVarInt()
+	{
+		long value = readVarLong();
+		if (value < 0 || value > Integer.MAX_VALUE)
+			throw new InvalidMessage();
+
+		return (int) value;
+	}
+
+
+	public long readLong()
+	{
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+
+	public Long readNullableLong()
+	{
+		return readBoolean() ? readLong() : null;
+	}
+
+
+	public boolean readBoolean()
+	{
+		return readByte() != 0;
+	}
+
+
+	public String readString()
+	{
+		byte[] bytes = readBytes();
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	public List<String> readStringList()
+	{
+		int size = readVarInt() - 1;
+		if (size < 0)
+		{
+			return null;
+		}
+		List<String> $ = new ArrayList<>(Math.min(size, remaining()));
+		for (int i = 0; i < size; i++)
+		{
+			$.add(readString());
+		}
+		return $;
+	}
+
+
+	/**
+	 * @param constants The constants of the enum read (e.g., {@code ErrorCode.values()}).
+	 */
+	public <E extends Enum<E>> E readEnum(E[] constants)
+	{
+		int ordinal = readVarInt() - 1;
+		if (ordinal < 0)
+		{
+			return null;
+		}
+		if (ordinal >= constants.length)
+			throw new InvalidMessage();
+
+		return constants[ordinal];
+	}
+
+
+	/**
+	 * Reads an object written by {@link BinaryWriter#writeObject(Object)}.
+	 */
+	public Object readObject()
+	{
+		return codec.readObject(this);
+	}
+
+
+	byte[] readBytes()
+	{
+		int length = readVarInt() - 1;
+		if (length < 0)
+		{
+			return null;
+		}
+		if (length > data.length - position)
+			throw new InvalidMessage();
+
+		byte[] $ = new byte[length];
+		System.arraycopy(data, position, $, 0, length);
+		position += length;
+		return $;
+	}
+
+
+	/**
+	 * @return The number of bytes not read yet. Every field takes at least a byte, so a list can't
+	 * have more elements than that (to clamp the capacity of a list to a size read off the data).
+	 */
+	public int remaining()
+	{
+		return data.length - position;
+	}
+
+
+	boolean isAtEnd()
+	{
+		return position == data.length;
+	}
+
+
+	private long readVarLong()
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new InvalidMessage();
+	}
+
+
+	private int readByte()
+	{
+		if (position >= data.length)
+			throw new InvalidMessage();
+
+		return data[position++];
+	}
+
+}
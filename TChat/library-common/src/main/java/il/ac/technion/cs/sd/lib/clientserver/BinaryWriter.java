@@ -0,0 +1,165 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the fields of an object encoded by {@link BinaryCodec}.
+ * Numbers are written as varints (7 bits per byte, the highest bit marking that more bytes 
+ * follow), and strings/lists are prefixed by their length.
+ */
+public class BinaryWriter {
+
+	private final BinaryCodec codec;
+
+	private byte[] buffer = new byte[64];
+
+	private int size = 0;
+
+
+	BinaryWriter(BinaryCodec codec)
+	{
+		this.codec = codec;
+	}
+
+
+	/**
+	 * Writes a non-negative int (small values take less bytes).
+	 */
+	public void writeVarInt(int value)
+	{
+		if (value < 0)
+			throw new IllegalArgumentException("value must not be negative");
+
+		writeVarLong(value);
+	}
+
+
+	/**
+	 * Writes any long (values closer to zero take less bytes).
+	 */
+	public void writeLong(long value)
+	{
+		writeVarLong((value << 1) ^ (value >> 63)); // zig-zag: 0,-1,1,-2,.. -> 0,1,2,3,..
+	}
+
+
+	public void writeNullableLong(Long value)
+	{
+		writeBoolean(value != null);
+		if (value != null)
+		{
+			writeLong(value);
+		}
+	}
+
+
+	public void writeBoolean(boolean value)
+	{
+		writeByte(value ? 1 : 0);
+	}
+
+
+	/**
+	 * Writes a string (which may be null).
+	 */
+	public void writeString(String value)
+	{
+		if (value == null)
+		{
+			writeVarInt(0);
+			return;
+		}
+		writeBytes(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+
+	/**
+	 * Writes a list of strings (which may be null).
+	 */
+	public void writeStringList(List<String> value)
+	{
+		if (value == null)
+		{
+			writeVarInt(0);
+			return;
+		}
+		writeVarInt(value.size() + 1);
+		for (String s : value)
+		{
+			writeString(s);
+		}
+	}
+
+
+	/**
+	 * Writes an enum constant (which may be null) by its ordinal.
+	 */
+	public void writeEnum(Enum<?> value)
+	{
+		writeVarInt(value == null ? 0 : value.ordinal() + 1);
+	}
+
+
+	/**
+	 * Writes an object (which may be null) of any type registered with the codec, preceded by 
+	 * the type's tag.
+	 */
+	public void writeObject(Object value)
+	{
+		codec.writeObject(value, this);
+	}
+
+
+	/**
+	 * Writes a byte array (which may be null).
+	 */
+	void writeBytes(byte[] value)
+	{
+		if (value == null)
+		{
+			writeVarInt(0);
+			return;
+		}
+		writeVarInt(value.length + 1);
+		ensureCapacity(value.length);
+		System.arraycopy(value, 0, buffer, size, value.length);
+		size += value.length;
+	}
+
+
+	byte[] toByteArray()
+	{
+		return Arrays.copyOf(buffer, size);
+	}
+
+
+	private void writeVarLong(long value)
+	{
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0)
+		{
+			buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[size++] = (byte) value;
+	}
+
+
+	private void writeByte(int b)
+	{
+		ensureCapacity(1);
+		buffer[size++] = (byte) b;
+	}
+
+
+	private void ensureCapacity(int extra)
+	{
+		if (size + extra > buffer.length)
+		{
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+		}
+	}
+
+}
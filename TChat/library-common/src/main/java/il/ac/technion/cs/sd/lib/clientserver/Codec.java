@@ -0,0 +1,44 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts the objects sent by clients and servers to strings that can be sent via Messenger, and
+ * back. 
+ * Implementations must be thread-safe, since a single codec is shared by all threads of a host 
+ * (and usually by all hosts).
+ */
+public interface Codec {
+
+	/**
+	 * @param data The object to encode. Must not be null.
+	 * @return A string representing 'data', that {@link #decode(String)} converts back.
+	 */
+	String encode(Object data);
+
+	/**
+	 * @param data A string returned by {@link #encode(Object)} of this codec.
+	 * @return The object encoded.
+	 */
+	Object decode(String data);
+
+	/**
+	 * Encodes an object to bytes, for storing in files (where it doesn't have to be text).
+	 * By default, the UTF-8 bytes of {@link #encode(Object)}.
+	 * @param data The object to encode. Must not be null.
+	 */
+	default byte[] encodeToBytes(Object data)
+	{
+		return encode(data).getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param data Bytes returned by {@link #encodeToBytes(Object)} of this codec.
+	 * @return The object encoded.
+	 */
+	default Object decodeFromBytes(byte[] data)
+	{
+		return decode(new String(data, StandardCharsets.UTF_8));
+	}
+
+}
@@ -0,0 +1,25 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.util.List;
+
+/**
+ * What a host actually sends via Messenger: one or more InnerMessages to the same recipient, sent 
+ * in a single payload (and acknowledged together by a single Acknowledgement).
+ */
+class Frame
+{
+	Frame() {}
+	Frame(List<InnerMessage> messages) {
+		this.messages = messages;
+	}
+
+	List<InnerMessage> messages;
+
+	
+	@Override
+	public String toString()
+	{
+		return "[frame of " + messages.size() + ":" + messages + "]";
+	}
+
+}
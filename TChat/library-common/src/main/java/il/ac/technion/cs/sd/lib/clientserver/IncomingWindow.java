@@ -0,0 +1,69 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * The receiving side of the sliding window protocol between a host and a single peer.
+ * Messages from the peer may arrive more than once and in any order - this class passes each of
+ * them on exactly once, in the order they were sent.
+ *
+ * This class is thread-safe.
+ */
+class IncomingWindow {
+
+	// The session of the peer we're currently receiving from, or null if nothing was received yet.
+	private Long session;
+
+	// The seq of the next message to pass on.
+	private long expectedSeq;
+
+	// Messages received ahead of 'expectedSeq', by their seq.
+	private final Map<Long, InnerMessage> outOfOrder = new TreeMap<>();
+
+
+	/**
+	 * Receives a (non acknowledgement) message from the peer, and passes every message that is now
+	 * in order to 'deliver' (while holding the lock of this window, so deliveries stay ordered).
+	 * @param message The message received.
+	 * @param deliver Invoked with each message now ready, in order.
+	 * @return The seq of the next message to pass on (i.e., all messages before it were received).
+	 */
+	synchronized long receive(InnerMessage message, Consumer<InnerMessage> deliver)
+	{
+		if (!message.session.equals(session))
+		{
+			// the peer was (re)started - nothing it sent earlier is relevant anymore.
+			session = message.session;
+			expectedSeq = message.windowBase;
+			outOfOrder.clear();
+		}
+
+		/* Everything before the window base was acknowledged - either by us (and is waiting in
+		 * outOfOrder) or by a previous run of this host. */
+		while (expectedSeq < message.windowBase)
+		{
+			InnerMessage m = outOfOrder.remove(expectedSeq);
+			if (m != null)
+			{
+				deliver.accept(m);
+			}
+			expectedSeq++;
+		}
+
+		if (message.seq >= expectedSeq && !outOfOrder.containsKey(message.seq))
+		{
+			outOfOrder.put(message.seq, message);
+		}
+
+		InnerMessage m;
+		while ((m = outOfOrder.remove(expectedSeq)) != null)
+		{
+			deliver.accept(m);
+			expectedSeq++;
+		}
+		return expectedSeq;
+	}
+
+}
@@ -24,12 +24,29 @@ public class InnerMessage
 	// The address of the sender.
 	String fromAddress;
 	
+	/* When several clients share a host (see ReliableHost.openChannel): the address of the client
+	 * that sent this message, and of the client it is sent to (null when sent by/to the host 
+	 * itself). */
+	String fromChannel;
+	String toChannel;
+	
+	/* The session of the sender (a random id chosen each time the sender is started), so the 
+	 * recipient can tell a restarted sender from a previous run with the same address. */
+	Long session;
+	
+	// The position of this message in the stream of messages from the sender to the recipient.
+	Long seq;
+	
+	/* The lowest seq the sender hasn't got an acknowledgement for (at sending time). All messages 
+	 * before it were already received by the recipient. */
+	Long windowBase;
+	
 	
 	@Override
 	public String toString()
 	{
 		return "[from:" + Utils.showable(fromAddress) + ",messageId=" + messageId + 
-		"," + "responseTargetId=" + responseTargetId + "]"; 
+		"," + "responseTargetId=" + responseTargetId + ",seq=" + seq + "]"; 
 	}
 
 }
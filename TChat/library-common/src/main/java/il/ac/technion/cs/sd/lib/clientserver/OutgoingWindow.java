@@ -0,0 +1,149 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The sending side of the sliding window protocol between a host and a single peer.
+ * Gives each message sent to the peer its position (seq) in the stream of messages to the peer,
+ * and keeps track of the seqs not acknowledged yet (at most 'capacity' of them).
+ * The messages themselves are kept by the host as PendingSends. Messages not transmitted yet wait
+ * here, so that the messages added meanwhile can be transmitted together in a single frame.
+ *
+ * This class is thread-safe.
+ */
+class OutgoingWindow {
+
+	private final int capacity;
+
+	private long nextSeq = 0;
+
+	// The seqs of the messages not acknowledged yet.
+	private final SortedSet<Long> unacknowledged = new TreeSet<>();
+
+	private boolean closed = false;
+
+	// Messages added but not transmitted yet.
+	private List<PendingSend> untransmitted = new ArrayList<>();
+
+	// true iff someone was made responsible for transmitting 'untransmitted'.
+	private boolean flushing = false;
+
+	// The retransmission timeout for messages to the peer.
+	final RetransmissionTimeout retransmissionTimeout = new RetransmissionTimeout();
+
+
+	OutgoingWindow(int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+
+	/**
+	 * Adds a message to the window (giving it the next seq), blocking while the window is full.
+	 * @throws InvalidOperation If the window was closed.
+	 */
+	synchronized void add(InnerMessage message) throws InterruptedException
+	{
+		while (!closed && unacknowledged.size() >= capacity)
+		{
+			wait();
+		}
+		if (closed)
+		{
+			throw new InvalidOperation();
+		}
+		message.seq = nextSeq++;
+		unacknowledged.add(message.seq);
+	}
+
+
+	/**
+	 * @return The lowest seq of a message not acknowledged yet (or the next seq to give, if all
+	 * messages were acknowledged).
+	 */
+	synchronized long base()
+	{
+		if (unacknowledged.isEmpty())
+		{
+			return nextSeq;
+		}
+		return unacknowledged.first();
+	}
+
+
+	/**
+	 * Removes all the messages before 'nextSeq' from the window (see Acknowledgement).
+	 * @return The seqs removed (i.e., acknowledged now, and not before).
+	 */
+	synchronized List<Long> acknowledgeUpTo(long nextSeq)
+	{
+		SortedSet<Long> acknowledged = unacknowledged.headSet(nextSeq);
+		List<Long> $ = new ArrayList<>(acknowledged);
+		if (!$.isEmpty())
+		{
+			acknowledged.clear();
+			notifyAll();
+		}
+		return $;
+	}
+
+
+	/**
+	 * Queues a message (already in the window) to be transmitted.
+	 * @return true iff the caller is now responsible for transmitting the queued messages (see 
+	 * {@link #takeUntransmitted(int)}), since no one else is.
+	 */
+	synchronized boolean queueForTransmission(PendingSend pending)
+	{
+		untransmitted.add(pending);
+		if (flushing)
+		{
+			return false;
+		}
+		flushing = true;
+		return true;
+	}
+
+
+	/**
+	 * Takes (up to 'max' of) the messages queued for transmission. Once this returns an empty 
+	 * list, the caller is no longer responsible for transmitting the queued messages.
+	 */
+	synchronized List<PendingSend> takeUntransmitted(int max)
+	{
+		if (untransmitted.isEmpty())
+		{
+			flushing = false;
+			return Collections.emptyList();
+		}
+		List<PendingSend> $;
+		if (untransmitted.size() <= max)
+		{
+			$ = untransmitted;
+			untransmitted = new ArrayList<>();
+		} else
+		{
+			List<PendingSend> first = untransmitted.subList(0, max);
+			$ = new ArrayList<>(first);
+			first.clear();
+		}
+		return $;
+	}
+
+
+	/**
+	 * Gives up on all messages in the window, and wakes up everyone waiting for room in it.
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		unacknowledged.clear();
+		untransmitted.clear();
+		notifyAll();
+	}
+
+}
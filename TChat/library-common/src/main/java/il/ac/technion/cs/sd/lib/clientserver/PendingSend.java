@@ -0,0 +1,94 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A message sent by a host that wasn't acknowledged yet.
+ */
+class PendingSend {
+
+	/**
+	 * Identifies a pending send - the recipient's address, and the message's seq.
+	 */
+	static class Key
+	{
+		final String peer;
+		final long seq;
+
+		Key(String peer, long seq) {
+			this.peer = peer;
+			this.seq = seq;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + (int) (seq ^ (seq >>> 32));
+			result = prime * result + ((peer == null) ? 0 : peer.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (getClass() != obj.getClass())
+				return false;
+			Key other = (Key) obj;
+			if (seq != other.seq)
+				return false;
+			if (peer == null) {
+				if (other.peer != null)
+					return false;
+			} else if (!peer.equals(other.peer))
+				return false;
+			return true;
+		}
+	}
+
+
+	// 'message' must already be in 'window' (i.e., have its seq).
+	PendingSend(String targetAddress, InnerMessage message, OutgoingWindow window)
+	{
+		this.key = new Key(targetAddress, message.seq);
+		this.message = message;
+		this.window = window;
+	}
+
+	final Key key;
+
+	final InnerMessage message;
+
+	// The window of the recipient, holding the message's seq.
+	final OutgoingWindow window;
+
+	// The timer that will retransmit the message, or null if not scheduled yet.
+	volatile ScheduledFuture<?> retransmitTimer;
+
+	// Completed when the message is acknowledged.
+	final CompletableFuture<Void> delivered = new CompletableFuture<>();
+
+	// When the message was first transmitted (in System.nanoTime() terms).
+	volatile long firstTransmissionTime;
+
+	// How long the last transmission waits for an acknowledgement, in milisec (0 before the first one).
+	volatile long timeout = 0;
+
+	// true iff the message was transmitted more than once.
+	volatile boolean retransmitted = false;
+
+
+	void cancelRetransmission()
+	{
+		ScheduledFuture<?> timer = retransmitTimer;
+		if (timer != null)
+		{
+			timer.cancel(false);
+		}
+	}
+
+}
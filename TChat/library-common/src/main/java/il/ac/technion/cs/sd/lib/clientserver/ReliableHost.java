@@ -1,8 +1,24 @@
 package il.ac.technion.cs.sd.lib.clientserver;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 
 import il.ac.technion.cs.sd.msg.Messenger;
@@ -14,6 +30,28 @@ import il.ac.technion.cs.sd.msg.MessengerFactory;
  * Provides general communication functionality common to all hosts for the implementation of the 
  * client-server package.
  * 
+ * Messages are delivered with a sliding window protocol: up to WINDOW_SIZE messages to each peer 
+ * may be in flight at the same time, each one is retransmitted (on its own timer) until acknowledged.
+ * The time to wait for an acknowledgement adapts to the round trip times measured for each peer 
+ * (see RetransmissionTimeout). The recipient passes messages on in the order they were sent.
+ * Messages to the same peer that are sent while a previous one is being transmitted (or within the
+ * linger time, if set) are transmitted together in a single Frame, and the recipient acknowledges 
+ * each frame with a single cumulative Acknowledgement. Sends from different threads may overlap.
+ * 
+ * Received messages are passed to the consumer on the listen thread, one at a time - or, if 
+ * dispatch workers are set, on that many worker threads: all messages from the same sender go to 
+ * the same worker (so they are still consumed one at a time, in order), while messages from 
+ * different senders may be consumed at the same time.
+ * With shared listening set, the host has no listen thread of its own: its messages are consumed 
+ * (still one at a time, in order) on a small pool of threads shared by all hosts in the process, 
+ * so a process can run very many hosts.
+ * 
+ * A host can also carry the messages of many clients, each with an address of its own (a channel, 
+ * see openChannel): their messages are tagged with the channel they were sent from, and a host 
+ * receiving them passes them on as sent from that address - and routes the messages it sends to 
+ * that address through the host that carries it. The windows, frames and acknowledgements to a 
+ * host are shared by all of its channels.
+ * 
  * This class is not thread-safe (meaning you must not access an object of this class from multiple 
  * threads simultaneously). 
  */
@@ -23,6 +61,9 @@ class ReliableHost {
 	private String _address;
 	private Messenger _messenger;
 	
+	// Encodes the InnerMessages sent.
+	private final Codec _codec;
+	
 	public String getAddress() {
 		return _address;
 	}
@@ -30,59 +71,131 @@ class ReliableHost {
 	// The first argument is the sender's address, the second is the data.
 	private BiConsumer<String, String> _consumer;
 	
-	/* A queue of InnerMessage objects representing the responses messages for messages sent by this host.
-	 * In practice, this queue will hold up to 2 elements (one for the user's thread and one for the
-	 * listening loop thread) */
-	private BlockingQueue<InnerMessage> responseBQ = new LinkedBlockingQueue<InnerMessage>();
+	/* The responses awaited for messages sent by this host: the id of the message sent -> a future 
+	 * completed with the data of its response (directly from the messenger's thread). */
+	private final Map<Long, CompletableFuture<String>> responseFutures = new ConcurrentHashMap<>();
 	
 	
 	/*
-	 * This is not null iff a message is currently being consumed by '_consumer'.
+	 * This is not null iff a message is currently being consumed by '_consumer' on the current 
+	 * thread (so each dispatch worker has its own).
 	 * sendResponse uses this variable to determine the response target. 
 	 * Note that this is an id of a message sent - so it may collide with an arbitrary message
 	 * this object has sent (and it's no problem).
 	 */
-	Long currentMessageConsumedId;
-	
-	//This object is used as a monitor to synchronize messages consumptions.
-	Object consumptionLock = new Object();
+	private final ThreadLocal<Long> currentMessageConsumedId = new ThreadLocal<>();
 	
 	
-	/* The id to give the next outgoing message.
-	 * All modification to synchronized must be done while synchronized by the nextMessageIdToGive
-	 * monitor. 
-	 */
-	Long nextMessageIdToGive = 0L;
+	// The id to give the next outgoing message.
+	AtomicLong nextMessageIdToGive = new AtomicLong(0);
 	
 	/* maximum time for a successful message to be delivered (from sending time to receiving time), 
-	 * in milisec */
+	 * in milisec. */
 	private static final int MAX_TIME_FOR_SUCCESFUL_DELIVERY = 100; 
 	//Gal recommended MAX_TIME_FOR_SUCCESFUL_DELIVERY=100, but 4 seems to be enough.
 	
-	/* the powerSend method "busy waits" on this field until its true, and then would resets it to
-	 * false.
-	 */
-	private boolean messageRecivedIndicator = false;
-	private boolean waitingForRecepientConfirmation = false; // for debuging.
+	// The maximal number of messages to a single peer that can be unacknowledged at the same time.
+	static final int WINDOW_SIZE = 64;
+	
+	// The maximal number of messages transmitted in a single frame.
+	static final int MAX_FRAME_SIZE = 32;
+	
+	/* How long a message waits for more messages to the same peer to be transmitted with, in 
+	 * milisec. When 0, messages are only batched with those sent while a frame is transmitted. */
+	private volatile long _lingerMillis = 0;
+	
+	// maximum time stop() waits for the messages in flight to be acknowledged, in milisec.
+	private static final int MAX_TIME_TO_FINISH_DELIVERIES = 5 * MAX_TIME_FOR_SUCCESFUL_DELIVERY;
+	
+	// Runs the retransmissions (and lingered transmissions) of all hosts.
+	private static final ScheduledExecutorService retransmissionTimer = 
+			Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "ReliableHost-retransmissions");
+				t.setDaemon(true);
+				return t;
+			});
 	
-	Object sendingLock = new Object();
+	private static final Random sessionsGenerator = new Random();
 	
+	// A random id chosen each time this host is started (see InnerMessage.session).
+	private long _session;
 	
-	boolean messageLoopRequestedToStop = false;
-	boolean messageLoopCurrentlyRunning = false;
-	// queue for non-empty messages.
-	BlockingQueue<String> primitiveMessagesToHandle = new LinkedBlockingQueue<>();
+	// peer address -> the window of messages sent to it.
+	private final Map<String, OutgoingWindow> outgoingWindows = new ConcurrentHashMap<>();
+	
+	/* All messages sent and not acknowledged yet. An acknowledgement removes its messages from here,
+	 * so whoever removes a message is the only one to handle its acknowledgement. */
+	private final Map<PendingSend.Key, PendingSend> pendingSends = new ConcurrentHashMap<>();
+	
+	// peer address -> the window of messages received from it.
+	private final Map<String, IncomingWindow> incomingWindows = new ConcurrentHashMap<>();
+	
+	
+	volatile boolean messageLoopCurrentlyRunning = false;
+	// queue for (already decoded) messages to be consumed by the listen loop.
+	BlockingDeque<InnerMessage> primitiveMessagesToHandle = new LinkedBlockingDeque<>();
 	Thread listenThread;
+	
+	// Put in front of primitiveMessagesToHandle to make the listen loop end.
+	private static final InnerMessage STOP_LISTENING = new InnerMessage();
+	
+	// The number of dispatch workers to start with (0 - messages are consumed on the listen thread).
+	private int _dispatchWorkers = 0;
+	
+	/* The workers messages are consumed on (empty if they are consumed on the listen thread). The 
+	 * messages of each sender are consumed by a single worker, chosen by the sender's address. */
+	private final List<ExecutorService> dispatchers = new ArrayList<>();
+	
+	// The threads of the dispatchers.
+	private final Set<Thread> dispatchThreads = ConcurrentHashMap.newKeySet();
+	
+	// Consume messages on sharedListeners from the next start, instead of on a listen thread.
+	private boolean _sharedListening = false;
+	
+	// The maximal number of messages a host consumes on a shared listener before letting others.
+	static final int MAX_MESSAGES_IN_TURN = 64;
+	
+	// Consumes the messages of all hosts with shared listening (each host on one thread at a time).
+	private static final ExecutorService sharedListeners = Executors.newFixedThreadPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+				private final AtomicLong threadsCreated = new AtomicLong();
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ReliableHost-shared-listen-" 
+							+ threadsCreated.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	/* With shared listening: true iff a shared listener was given the messages of this host, and 
+	 * true iff the host was stopped (guarded by primitiveMessagesToHandle). */
+	private boolean drainScheduled = false;
+	private boolean drainStopped = false;
+	
+	// The shared listener currently consuming the messages of this host (null if none).
+	private volatile Thread drainingThread;
+	
+	// channel -> the consumer of the messages sent to it (see openChannel).
+	private final Map<String, BiConsumer<String, String>> channels = new ConcurrentHashMap<>();
+	
+	/* The address of a client carried by another host -> the address of that host, learned from 
+	 * the messages received from the client. */
+	private final Map<String, String> routes = new ConcurrentHashMap<>();
 
 	
 
 	/**
 	 * @param address The address of the new host.
+	 * @param codec The codec to encode the InnerMessages sent with. All hosts communicating with 
+	 * each other must use the same kind of codec.
 	 * @throws MessengerException 
 	 */
-	ReliableHost(String address)
+	ReliableHost(String address, Codec codec)
 	{
 		_address = address;
+		_codec = codec;
 	}
 	
 	
@@ -98,69 +211,126 @@ class ReliableHost {
 		
 		_consumer = consumer;
 		
+		_session = sessionsGenerator.nextLong();
+		
 		_messenger = new MessengerFactory().start(_address, payload -> {
 
-				
-				if (payload.isEmpty())
+				if (Acknowledgement.isAcknowledgement(payload))
 				{
-					Utils.DEBUG_LOG_LINE("\"\"   _address=" + Utils.showable(_address)); 
-					
-					assert(!messageRecivedIndicator);
-					assert(waitingForRecepientConfirmation);
-					messageRecivedIndicator = true;
-					
+					acknowledgementArrived(Acknowledgement.fromPayload(payload));
 					return;
 				} 
 				
-				sendRecipeintConfirmation(payload);
+				// the only place a received frame is decoded.
+				Frame frame = getFrameFromPayload(payload);
 				
-				InnerMessage message = getInnerMessageFromPayload(payload);
-				if (message.responseTargetId != null)
+				InnerMessage first = frame.messages.get(0);
+				IncomingWindow window = incomingWindows.computeIfAbsent(first.fromAddress, 
+						a -> new IncomingWindow());
+				long nextSeq = 0;
+				for (InnerMessage message : frame.messages)
 				{
-					Utils.DEBUG_LOG_LINE("---responseBQ.put: " + message);
-					
-					try {
-						responseBQ.put(message);
-						assert(responseBQ.size() <= 2); // see documentation of responseBQ
-					} catch (InterruptedException e) {
-						throw new RuntimeException("InterruptedException");
-					}
-					return;
+					nextSeq = window.receive(message, this::messageInOrderArrived);
 				}
 				
-				
-				
-				Utils.DEBUG_LOG_LINE("+++ Adding to regular queue of: " + Utils.showable(_address) + ", payload.length():" + payload.length() );
-				
-				
-				try {
-					primitiveMessagesToHandle.put(payload);
-				} catch (Exception e) {
-					throw new RuntimeException("failded to put in primitiveMessagesToHandle");
-				}
-				
-				
-				
+				sendRecipeintConfirmation(first, nextSeq);
 
 		});
 		
+		for (int i = 0; i < _dispatchWorkers; i++)
+		{
+			String name = "ReliableHost-dispatch-" + _address + "-" + i;
+			dispatchers.add(Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				dispatchThreads.add(t);
+				return t;
+			}));
+		}
+		
+		if (_sharedListening)
+		{
+			synchronized (primitiveMessagesToHandle)
+			{
+				drainStopped = false;
+			}
+			listenThread = null;
+			messageLoopCurrentlyRunning = true;
+			return;
+		}
+		
 		listenThread = new Thread(() -> {
 				listeningLoop();
-		});
+		}, "ReliableHost-listen-" + _address);
 		
+		messageLoopCurrentlyRunning = true;
 		listenThread.start();
-		
-		while (!messageLoopCurrentlyRunning)
+	}
+	
+	/**
+	 * Sets how long a message waits for more messages to the same peer to be transmitted with it,
+	 * in milisec (0 by default).
+	 */
+	void setLinger(long millis)
+	{
+		_lingerMillis = millis;
+	}
+	
+	
+	/**
+	 * Sets the number of worker threads received messages are consumed on, from the next start
+	 * (0 by default - they are consumed on the listen thread).
+	 */
+	void setDispatchWorkers(int workers)
+	{
+		if (messageLoopCurrentlyRunning)
 		{
-			try {
-				Thread.sleep(1);
-			} catch (InterruptedException e) {
-				throw new RuntimeException("InterruptedException");
-			}
+			throw new InvalidOperation();
+		}
+		_dispatchWorkers = workers;
+	}
+	
+	
+	/**
+	 * Sets whether received messages are consumed on threads shared by all hosts, from the next 
+	 * start (false by default - they are consumed on a listen thread of this host). 
+	 * The consumer must then return quickly, since other hosts may be waiting for its thread.
+	 */
+	void setSharedListening(boolean shared)
+	{
+		if (messageLoopCurrentlyRunning)
+		{
+			throw new InvalidOperation();
+		}
+		_sharedListening = shared;
+	}
+	
+	
+	/**
+	 * Lets this host carry the messages of another client, whose address is 'channel': messages 
+	 * sent to it are passed to 'consumer' (instead of the consumer this host was started with), 
+	 * and messages sent from it are tagged with it (see send).
+	 * @param consumer The first argument taken is the sender's address, the second is the data.
+	 */
+	void openChannel(String channel, BiConsumer<String, String> consumer)
+	{
+		if (channels.putIfAbsent(channel, consumer) != null)
+		{
+			throw new InvalidOperation();
 		}
-		
 	}
 	
+	
+	// Messages sent to 'channel' from now on are dropped.
+	void closeChannel(String channel)
+	{
+		if (channels.remove(channel) == null)
+		{
+			throw new InvalidOperation();
+		}
+	}
+	
+	
 	void stop()
 	{
 		if (!messageLoopCurrentlyRunning)
@@ -170,30 +340,79 @@ class ReliableHost {
 		
 		// To let deliveries under process to finish succesfully.
 		try {
-			Thread.sleep(MAX_TIME_FOR_SUCCESFUL_DELIVERY);
-		} catch (InterruptedException e1) {
+			CompletableFuture.allOf(pendingSends.values().stream()
+					.map(p -> p.delivered).toArray(CompletableFuture[]::new))
+				.get(MAX_TIME_TO_FINISH_DELIVERIES, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
 			throw new RuntimeException("InterruptedException");
+		} catch (ExecutionException | TimeoutException e) {
+			Utils.DEBUG_LOG_LINE("stopping with undelivered messages, _address=" + _address);
 		}
 		
-		messageLoopRequestedToStop = true;
-		
-		while (messageLoopCurrentlyRunning)
+		if (_sharedListening)
+		{
+			stopDraining();
+		} else
+		{
+			primitiveMessagesToHandle.addFirst(STOP_LISTENING);
+		}
+		if (listenThread != null && Thread.currentThread() != listenThread)
 		{
 			try {
-				Thread.sleep(1);
+				listenThread.join();
 			} catch (InterruptedException e) {
 				throw new RuntimeException("InterruptedException");
 			}
 		}
 		
+		// To let the messages already dispatched be consumed (unless called from a consumer).
+		for (ExecutorService dispatcher : dispatchers)
+		{
+			dispatcher.shutdown();
+		}
+		if (!dispatchThreads.contains(Thread.currentThread()))
+		{
+			for (ExecutorService dispatcher : dispatchers)
+			{
+				try {
+					dispatcher.awaitTermination(MAX_TIME_TO_FINISH_DELIVERIES, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					throw new RuntimeException("InterruptedException");
+				}
+			}
+		}
+		dispatchers.clear();
+		dispatchThreads.clear();
+		messageLoopCurrentlyRunning = false;
+		
 		try {
 			_messenger.kill();
 		} catch (MessengerException e) {
 			throw new RuntimeException("failed to kill messenger!");
 		}
 		
-		responseBQ.clear();
-		currentMessageConsumedId = null;
+		for (PendingSend pending : pendingSends.values())
+		{
+			pending.cancelRetransmission();
+			pending.delivered.completeExceptionally(
+					new CommunicationFailure("host stopped before the message was delivered"));
+		}
+		pendingSends.clear();
+		for (OutgoingWindow window : outgoingWindows.values())
+		{
+			window.close();
+		}
+		outgoingWindows.clear();
+		incomingWindows.clear();
+		routes.clear();
+		channels.clear();
+		
+		for (CompletableFuture<String> response : responseFutures.values())
+		{
+			response.completeExceptionally(
+					new CommunicationFailure("host stopped before the response arrived"));
+		}
+		responseFutures.clear();
 	}
 	
 
@@ -203,22 +422,35 @@ class ReliableHost {
 	 * @param respnseTargetId Should be null if 'data' is not a response.
 	 * @param isResponse true iff 'data' is a response to a message previously sent by another host.
 	 * When true, you must call this method only from the consumer of the listen loop (i.e., from the 
-	 * callback function invoked by the message to which the response is for).
+	 * callback function invoked by the message to which the response is for, on its thread).
+	 * @return A future completed once 'targetAddress' acknowledges the message.
 	 * @throws MessengerException 
 	 */
-	void send(String targetAddress, String data, boolean isResponse) 
+	CompletableFuture<Void> send(String targetAddress, String data, boolean isResponse) 
 			throws MessengerException
+	{
+		return send(targetAddress, data, isResponse, null);
+	}
+	
+	
+	/**
+	 * Like {@link #send(String, String, boolean)}, sent from a channel of this host (or from the 
+	 * host itself, if 'fromChannel' is null).
+	 */
+	CompletableFuture<Void> send(String targetAddress, String data, boolean isResponse, 
+			String fromChannel) throws MessengerException
 	{
 		if (isResponse)
 		{
-			if (currentMessageConsumedId == null)
+			Long responseTargetId = currentMessageConsumedId.get();
+			if (responseTargetId == null)
 			{
 				throw new InvalidOperation();
 			}
-			send(targetAddress, data, currentMessageConsumedId, null);
+			return send(targetAddress, data, responseTargetId, null, fromChannel);
 		} else
 		{
-			send(targetAddress, data, null, null);
+			return send(targetAddress, data, null, null, fromChannel);
 		}
 	}
 	
@@ -229,76 +461,96 @@ class ReliableHost {
 	 * This function runs either on the user's thread or on the listen loop thread.
 	 * @param targetAddress
 	 * @param data
+	 * @param fromChannel The channel the message is sent from (null - from this host itself).
 	 * @throws MessengerException
 	 * @throws InterruptedException
 	 */
 	String sendAndBlockUntilResponseArrives(
-			String  targetAddress, String data) throws MessengerException
+			String  targetAddress, String data, String fromChannel) throws MessengerException
+	{
+		try {
+			return request(targetAddress, data, fromChannel).get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("InterruptedException");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	
+	/**
+	 * Sends a message, without blocking until its response is received.
+	 * Any number of requests may be awaiting their responses at the same time.
+	 * @return A future completed with the data of the response to the message sent (or completed
+	 * exceptionally with CommunicationFailure if this host is stopped first).
+	 * @param fromChannel The channel the message is sent from (null - from this host itself).
+	 * @throws MessengerException
+	 */
+	CompletableFuture<String> request(String targetAddress, String data, String fromChannel) 
+			throws MessengerException
 	{
 		if (!messageLoopCurrentlyRunning)
 		{
 			throw new InvalidOperation();
 		}
 		
+		long responseRequestorId = nextMessageIdToGive.getAndIncrement();
+		CompletableFuture<String> response = new CompletableFuture<>();
+		// registered before sending, since the response may arrive before send returns.
+		responseFutures.put(responseRequestorId, response);
 		
-		long responseRequestorId;
-		synchronized(nextMessageIdToGive)
-		{
-			responseRequestorId = nextMessageIdToGive;
-			nextMessageIdToGive++;
-		}
-		
-		
-		send(targetAddress, data, null, responseRequestorId);
-		
-		InnerMessage response;
-		
-		while (true)
-		{
-			try {
-				response = responseBQ.take();
-			} catch (InterruptedException e) {
-				throw new RuntimeException("InterruptedException");
-			}
-			if (response.responseTargetId == responseRequestorId)
-			{
-				Utils.DEBUG_LOG_LINE("Took, _address=" + Utils.showable(_address) + ", msg=" + response); 
-				return response.data;
-			}
-			try {
-				responseBQ.put(response);
-				Thread.sleep(50); // give the other thread a chance to grab the response.
-			} catch (InterruptedException e) {
-				throw new RuntimeException("InterruptedException");
-			} 
+		try {
+			send(targetAddress, data, null, responseRequestorId, fromChannel);
+		} catch (MessengerException | RuntimeException e) {
+			responseFutures.remove(responseRequestorId);
+			throw e;
 		}
-		
+		return response;
 	}
 
 	
 	/*
-	 * Only a single non-empty message can be consumed at any given time.
-	 * This function is run on the listen-loop thread.
+	 * Only a single non-empty message can be consumed at any given time on each thread.
+	 * This function is run on the listen-loop thread, or on a dispatch worker.
 	 */
-	private void newMessageArrivedCallback(String data)
+	private void newMessageArrivedCallback(InnerMessage message)
 	{
 		
-		Utils.DEBUG_LOG_LINE("NewArrived. _address="+ Utils.showable(_address) + ", data.length()="
-		+ data.length() + ", data=" + Utils.showable(data));
-		
-		assert (!data.isEmpty());
-		
-		InnerMessage message = getInnerMessageFromPayload(data);
+		Utils.DEBUG_LOG_LINE("NewArrived. _address="+ Utils.showable(_address) + ", msg=" + message);
 		
 		assert(message.responseTargetId == null);
 		  
 		Utils.DEBUG_LOG_LINE("---regular-consume: " + message);
 
 		
-		assert(currentMessageConsumedId == null);
-		currentMessageConsumedId = message.messageId;
-		_consumer.accept(message.fromAddress, message.data);
-		currentMessageConsumedId = null;
+		BiConsumer<String, String> consumer = _consumer;
+		if (message.toChannel != null)
+		{
+			consumer = channels.get(message.toChannel);
+			if (consumer == null)
+			{
+				Utils.DEBUG_LOG_LINE("channel closed, dropping: " + message);
+				return;
+			}
+		}
+		String from = message.fromChannel != null ? message.fromChannel : message.fromAddress;
+		
+		assert(currentMessageConsumedId.get() == null);
+		currentMessageConsumedId.set(message.messageId);
+		try {
+			consumer.accept(from, message.data);
+		} finally {
+			currentMessageConsumedId.remove();
+		}
 			
 	}
 
@@ -306,140 +558,362 @@ class ReliableHost {
 	/**
 	 * Sends a 'data' string to 'targetAddress', without a chance to fail.
 	 * This function runs either on the user's thread or on the listen loop thread.
+	 * Returns once the message is in the window of 'targetAddress' (blocking while the window is 
+	 * full) - the message is transmitted (possibly by another thread, in a frame with other 
+	 * messages) and retransmitted from then on until it is acknowledged.
 	 * @param respnseTargetId Should be null if 'data' is not a response.
 	 * @param newMessageId If null, nextMessageIdToGive is used and incremented.
+	 * @param fromChannel The channel the message is sent from (null - from this host itself).
+	 * @return A future completed once 'targetAddress' acknowledges the message.
 	 * @throws MessengerException 
 	 */
-	private void send(String  targetAddress, String data, Long respnseTargetId, Long newMessageId) 
-			throws MessengerException
+	private CompletableFuture<Void> send(String  targetAddress, String data, Long respnseTargetId, 
+			Long newMessageId, String fromChannel) throws MessengerException
 	{
 		if (!messageLoopCurrentlyRunning)
 		{
 			throw new InvalidOperation();
 		}
 		
-
-		
 		if (newMessageId == null)
 		{
-			synchronized(nextMessageIdToGive)
+			newMessageId = nextMessageIdToGive.getAndIncrement();
+		}
+		InnerMessage newMessage = new InnerMessage(newMessageId,respnseTargetId, data, _address);
+		newMessage.session = _session;
+		newMessage.fromChannel = fromChannel;
+		
+		// a client carried by another host is sent to through that host.
+		String host = routes.get(targetAddress);
+		if (host != null)
+		{
+			newMessage.toChannel = targetAddress;
+			targetAddress = host;
+		}
+		
+		OutgoingWindow window = outgoingWindows.computeIfAbsent(targetAddress, 
+				a -> new OutgoingWindow(WINDOW_SIZE));
+		try {
+			window.add(newMessage);
+		} catch (InterruptedException e) {
+			throw new RuntimeException("InterruptedException");
+		}
+		PendingSend pending = new PendingSend(targetAddress, newMessage, window);
+		pendingSends.put(pending.key, pending);
+		
+		Utils.DEBUG_LOG_LINE(">>>Sending message from " + _address + ", msg=" + newMessage); 
+		
+		if (window.queueForTransmission(pending))
+		{
+			long linger = _lingerMillis;
+			if (linger == 0)
 			{
-				newMessageId = nextMessageIdToGive;
-				nextMessageIdToGive++;
+				flush(window);
+			} else
+			{
+				retransmissionTimer.schedule(() -> flush(window), linger, TimeUnit.MILLISECONDS);
 			}
 		}
-		InnerMessage newMessage = new InnerMessage(newMessageId,respnseTargetId, data, _address);
+		return pending.delivered;
+	}
+	
+	
+	/*
+	 * Transmits the messages queued in a window, in frames of up to MAX_FRAME_SIZE messages, until 
+	 * none are left. Only the one made responsible for the queued messages by 
+	 * OutgoingWindow.queueForTransmission may call this.
+	 */
+	private void flush(OutgoingWindow window)
+	{
+		List<PendingSend> frame;
+		while (!(frame = window.takeUntransmitted(MAX_FRAME_SIZE)).isEmpty())
+		{
+			transmit(frame);
+		}
+	}
+	
+	
+	/*
+	 * Sends pending messages to the same peer in a single frame (skipping those already 
+	 * acknowledged), and schedules their retransmissions - each on its own.
+	 * This function runs either on the sending thread (first transmission) or on the 
+	 * retransmissions timer thread.
+	 */
+	private void transmit(List<PendingSend> frame)
+	{
+		List<PendingSend> stillPending = new ArrayList<>(frame.size());
+		for (PendingSend pending : frame)
+		{
+			if (pendingSends.get(pending.key) == pending)
+			{
+				stillPending.add(pending);
+			}
+		}
+		if (stillPending.isEmpty())
+		{
+			return;
+		}
 		
-		int TMP__tries = 0;
+		Utils.DEBUG_LOG_LINE("===transmitting " + stillPending.size() + " messages (by " + _address + ")");
 		
-		synchronized (sendingLock)
+		PendingSend first = stillPending.get(0);
+		long windowBase = first.window.base();
+		List<InnerMessage> messages = new ArrayList<>(stillPending.size());
+		for (PendingSend pending : stillPending)
 		{
-			
-			assert(!messageRecivedIndicator);
-			assert(!waitingForRecepientConfirmation);
-			
-			
-			Utils.DEBUG_LOG_LINE(">>>Sending message from " + _address + ", msg=" + newMessage); 
-			
-			
-			/*
-			 * The synchronization is important, otherwise, we won't know for which message the 
-			 * "ok, I've got it" empty message refers to. 
-			 */
-			while (!messageRecivedIndicator)
+			if (pending.timeout == 0)
 			{
-				
-				TMP__tries++;
-				Utils.DEBUG_LOG_LINE("===try #" + TMP__tries + "     (by " + _address + ")");
-				
-				
-				String payload = Utils.fromObjectToXStreamerStr(newMessage);
-				
-				waitingForRecepientConfirmation = true;
-				primitiveSendRepeatedly(targetAddress, payload);
-				try {
-					Thread.sleep(MAX_TIME_FOR_SUCCESFUL_DELIVERY);
-				} catch (InterruptedException e) {
-					throw new RuntimeException("InterruptedException");
-				}
+				pending.firstTransmissionTime = System.nanoTime();
+				pending.timeout = pending.window.retransmissionTimeout.get();
+			} else
+			{
+				pending.retransmitted = true;
+				pending.timeout = RetransmissionTimeout.backOff(pending.timeout);
 			}
-			waitingForRecepientConfirmation = false;
-			
-			Utils.DEBUG_LOG_LINE("===success   (by " + _address + ")"); 
-			
-			messageRecivedIndicator = false;
+			pending.message.windowBase = windowBase;
+			messages.add(pending.message);
 		}
 		
+		primitiveSend(first.key.peer, _codec.encode(new Frame(messages)));
 		
+		for (PendingSend pending : stillPending)
+		{
+			pending.retransmitTimer = retransmissionTimer.schedule(
+					() -> transmit(Collections.singletonList(pending)), 
+					pending.timeout, TimeUnit.MILLISECONDS);
+			
+			// the acknowledgement may have arrived before the timer was set.
+			if (pendingSends.get(pending.key) != pending)
+			{
+				pending.cancelRetransmission();
+			}
+		}
+	}
+	
+	
+	/*
+	 * Handles an acknowledgement from a peer, of all messages before ack.nextSeq. Messages that are
+	 * no longer pending (acknowledged before, or sent in a previous session of this host) are 
+	 * ignored.
+	 * This function runs on the messenger's thread.
+	 */
+	private void acknowledgementArrived(Acknowledgement ack)
+	{
+		Utils.DEBUG_LOG_LINE("ack   _address=" + Utils.showable(_address) + ", " + ack); 
+		
+		if (ack.session != _session)
+		{
+			return;
+		}
+		OutgoingWindow window = outgoingWindows.get(ack.fromAddress);
+		if (window == null)
+		{
+			return;
+		}
+		for (long seq : window.acknowledgeUpTo(ack.nextSeq))
+		{
+			PendingSend pending = pendingSends.remove(new PendingSend.Key(ack.fromAddress, seq));
+			if (pending == null)
+			{
+				continue;
+			}
+			pending.cancelRetransmission();
+			// one round trip sample per acknowledgement - of the last message it covers.
+			if (seq == ack.nextSeq - 1 && !pending.retransmitted)
+			{
+				window.retransmissionTimeout.addMeasurement(
+						(System.nanoTime() - pending.firstTransmissionTime) / 1e6);
+			}
+			pending.delivered.complete(null);
+		}
 	}
 
 
-	/* sends a message via _messenger, repeatedly, until recipient is a valid messenger (note that 
-	 * it can still fail to be delivered).
+	/* Sends a payload via _messenger once. If it fails (e.g., the recipient isn't a valid messenger 
+	 * right now), the payload is lost - just as if the messenger lost it. 
 	 */
-	private void primitiveSendRepeatedly(String to, String payload)
+	private void primitiveSend(String to, String payload)
 	{
 		assert(to != null && payload != null);	
-		while (true)
-		{	
-			try {
-				if (payload.isEmpty())
-				{
-					Utils.DEBUG_LOG_LINE("|||||| Sending empty message, from: " + _messenger.getAddress() + "; to: " + to + " |||||||||");
-				}
-				_messenger.send(to, payload);
-				return;
-			} catch (MessengerException e) {
-				//trying again///
-				try {
-					Thread.sleep(10);
-				} catch (InterruptedException e1) {
-					assert(false);
-				}
-			}
+		try {
+			_messenger.send(to, payload);
+		} catch (MessengerException e) {
+			Utils.DEBUG_LOG_LINE("|||||| Failed sending, from: " + _address + "; to: " + to + " |||||||||");
 		}
 	}
 
 	
-	/* Runs on a single dedicated thread */
+	/* Runs on a single dedicated thread. Blocks (without polling) until a message arrives, and ends
+	 * once STOP_LISTENING is taken. */
 	private void listeningLoop()
 	{
-		messageLoopCurrentlyRunning = true;
-		while (!messageLoopRequestedToStop)
+		while (true)
 		{
-			String str;
+			InnerMessage message;
 			try {
-				str = primitiveMessagesToHandle.poll(10, TimeUnit.MILLISECONDS);
+				message = primitiveMessagesToHandle.take();
 			} catch (InterruptedException e) {
 				throw new RuntimeException("InterruptedException");
 			}
-			if (str != null)
-			{
-				newMessageArrivedCallback(str);
-			} else
+			if (message == STOP_LISTENING)
 			{
-				Utils.DEBUG_LOG_LINE("____________________queue empty for: " + _address); 
+				break;
 			}
+			consume(message);
 		}
-		messageLoopRequestedToStop = false;
-		messageLoopCurrentlyRunning = false;
 		
 		Utils.DEBUG_LOG_LINE("!!!!!!!!!!!!!!!!!! LISTEN LOOP ENDED FOR: " + _address);
 	}
 	
+	private void consume(InnerMessage message)
+	{
+		if (dispatchers.isEmpty())
+		{
+			newMessageArrivedCallback(message);
+		} else
+		{
+			dispatch(message);
+		}
+	}
+	
+	/* With shared listening, queues a message to be consumed, and gives the queue to a shared 
+	 * listener unless one already has it. */
+	private void enqueueForSharedListener(InnerMessage message)
+	{
+		synchronized (primitiveMessagesToHandle)
+		{
+			if (drainStopped)
+			{
+				return;
+			}
+			primitiveMessagesToHandle.add(message);
+			if (drainScheduled)
+			{
+				return;
+			}
+			drainScheduled = true;
+		}
+		sharedListeners.execute(this::drain);
+	}
+	
+	/* Runs on a shared listener. Consumes the queued messages until there are none left, or 
+	 * MAX_MESSAGES_IN_TURN were consumed (and then gives the queue to a shared listener again). */
+	private void drain()
+	{
+		drainingThread = Thread.currentThread();
+		try {
+			for (int i = 0; i < MAX_MESSAGES_IN_TURN; i++)
+			{
+				InnerMessage message;
+				synchronized (primitiveMessagesToHandle)
+				{
+					message = drainStopped ? null : primitiveMessagesToHandle.poll();
+					if (message == null)
+					{
+						drainScheduled = false;
+						primitiveMessagesToHandle.notifyAll();
+						return;
+					}
+				}
+				consume(message);
+			}
+		} finally {
+			drainingThread = null;
+		}
+		sharedListeners.execute(this::drain);
+	}
+	
+	/* With shared listening, drops the messages not consumed yet, and waits for the one being 
+	 * consumed (unless called from its consumer). */
+	private void stopDraining()
+	{
+		synchronized (primitiveMessagesToHandle)
+		{
+			drainStopped = true;
+			primitiveMessagesToHandle.clear();
+			if (drainingThread == Thread.currentThread())
+			{
+				return;
+			}
+			while (drainScheduled)
+			{
+				try {
+					primitiveMessagesToHandle.wait();
+				} catch (InterruptedException e) {
+					throw new RuntimeException("InterruptedException");
+				}
+			}
+		}
+	}
+	
+	// Hands a message to the worker of its sender.
+	private void dispatch(InnerMessage message)
+	{
+		int worker = (message.fromAddress.hashCode() & Integer.MAX_VALUE) % dispatchers.size();
+		try {
+			dispatchers.get(worker).execute(() -> newMessageArrivedCallback(message));
+		} catch (RejectedExecutionException e) {
+			// we are being stopped (from a consumer), the message is dropped.
+		}
+	}
+	
 	/**
-	 * sends a confirmation (empty message) that the payload was received.
-	 * @param payload - a primitive payload received by _messenger.
+	 * sends a confirmation (a cumulative acknowledgement) that a frame was received.
+	 * @param m - a message of the frame received by _messenger.
+	 * @param nextSeq - all messages from m's sender before this seq were received.
 	 */
-	private void sendRecipeintConfirmation(String payload)
+	private void sendRecipeintConfirmation(InnerMessage m, long nextSeq)
 	{
-		InnerMessage m = getInnerMessageFromPayload(payload);
-		primitiveSendRepeatedly(m.fromAddress, "");
+		primitiveSend(m.fromAddress, new Acknowledgement(nextSeq, m.session, _address).toPayload());
+	}
+	
+	
+	/*
+	 * Passes on a message received from a peer, once all the messages the peer sent before it were
+	 * passed on. Responses go to the thread waiting for them, other messages to the listen loop.
+	 * This function runs on the messenger's thread.
+	 */
+	private void messageInOrderArrived(InnerMessage message)
+	{
+		// learned before the message is consumed, so the consumer can reply to it.
+		if (message.fromChannel != null)
+		{
+			routes.put(message.fromChannel, message.fromAddress);
+		} else if (!routes.isEmpty())
+		{
+			// the client has a host of its own now.
+			routes.remove(message.fromAddress);
+		}
+		
+		if (message.responseTargetId != null)
+		{
+			Utils.DEBUG_LOG_LINE("---response arrived: " + message);
+			
+			CompletableFuture<String> response = responseFutures.remove(message.responseTargetId);
+			if (response != null)
+			{
+				response.complete(message.data);
+			}
+			return;
+		}
+		
+		Utils.DEBUG_LOG_LINE("+++ Adding to regular queue of: " + Utils.showable(_address) + ", msg=" + message);
+		
+		if (_sharedListening)
+		{
+			enqueueForSharedListener(message);
+			return;
+		}
+		try {
+			primitiveMessagesToHandle.put(message);
+		} catch (Exception e) {
+			throw new RuntimeException("failded to put in primitiveMessagesToHandle");
+		}
 	}
 
 
-	private InnerMessage getInnerMessageFromPayload(String payload) {
-		return (InnerMessage) Utils.fromXStreamerStrToObject(payload);
+	private Frame getFrameFromPayload(String payload) {
+		return (Frame) _codec.decode(payload);
 	}
 
 }
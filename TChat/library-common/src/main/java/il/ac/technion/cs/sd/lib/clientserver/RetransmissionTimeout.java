@@ -0,0 +1,76 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+/**
+ * Estimates how long to wait for an acknowledgement from a single peer before retransmitting,
+ * from the round trip times measured so far (the same way TCP does, see RFC 6298): 
+ * the smoothed round trip time plus four times its variance.
+ *
+ * This class is thread-safe.
+ */
+class RetransmissionTimeout {
+
+	// The timeout until a round trip time is measured, in milisec.
+	static final long INITIAL_TIMEOUT = 100;
+
+	/* bounds for the timeout, in milisec. Measured round trips are often well below the floor, 
+	 * but a GC or scheduling pause on either side easily takes longer, and a timeout shorter than 
+	 * the pause retransmits every message in flight for nothing (RFC 6298 uses a whole second). */
+	static final long MIN_TIMEOUT = 100;
+	static final long MAX_TIMEOUT = 2000;
+
+	// weights of a new measurement in the smoothed round trip time, and in its variance.
+	private static final double ALPHA = 1.0 / 8;
+	private static final double BETA = 1.0 / 4;
+
+	// The smoothed round trip time, in milisec, or negative if nothing was measured yet.
+	private double smoothedRtt = -1;
+
+	private double rttVariance;
+
+	private long timeout = INITIAL_TIMEOUT;
+
+
+	/**
+	 * @return The current timeout, in milisec.
+	 */
+	synchronized long get()
+	{
+		return timeout;
+	}
+
+
+	/**
+	 * Adds a measurement of a round trip time. Only messages transmitted once should be measured,
+	 * since there is no telling which transmission a retransmitted message was acknowledged for.
+	 * @param rtt The time from sending a message to receiving its acknowledgement, in milisec.
+	 */
+	synchronized void addMeasurement(double rtt)
+	{
+		if (smoothedRtt < 0)
+		{
+			smoothedRtt = rtt;
+			rttVariance = rtt / 2;
+		} else
+		{
+			rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rtt);
+			smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rtt;
+		}
+		timeout = bound((long) Math.ceil(smoothedRtt + 4 * rttVariance));
+	}
+
+
+	/**
+	 * @return The timeout to use after a transmission that waited 'previousTimeout' in vain.
+	 */
+	static long backOff(long previousTimeout)
+	{
+		return bound(previousTimeout * 2);
+	}
+
+
+	private static long bound(long t)
+	{
+		return Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, t));
+	}
+
+}
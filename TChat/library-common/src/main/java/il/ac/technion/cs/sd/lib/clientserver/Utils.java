@@ -1,14 +1,24 @@
 package il.ac.technion.cs.sd.lib.clientserver;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
-import com.thoughtworks.xstream.XStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
 
 /**
  * Common utilities.
@@ -17,6 +27,21 @@ public class Utils {
 	
 	final static String ENCODING = "UTF-8";
 	
+	private final static int FILE_BUFFER_SIZE = 64 * 1024;
+	
+	// The codec used unless a client/server is given another one.
+	private final static Codec defaultCodec = new XStreamCodec();
+	
+	
+	/**
+	 * @return The codec clients and servers use unless given another one (XStream XML, with no 
+	 * aliases other than the library's own).
+	 */
+	public static Codec getDefaultCodec()
+	{
+		return defaultCodec;
+	}
+	
 	
 	/**
 	 * Deserializes a XStreamer string into an object.
@@ -25,30 +50,11 @@ public class Utils {
 	 */
 	public static Object fromXStreamerStrToObject(String data)
 	{
-		if (data == null) 
-			throw new IllegalArgumentException("data cannot be null");
-
-		XStream xstream = new XStream();
-		return xstream.fromXML(data);
+		return defaultCodec.decode(data);
 
 	}
 	
 	
-	public static void writeToFile(Object data, String fileName) throws IOException{
-		
-		if(fileName == null || data == null){
-			throw new IllegalArgumentException("null parameters for write to file");
-		}
-		String dataAsJson = fromObjectToXStreamerStr(data);
-		
-		FileOutputStream outputStream = new FileOutputStream(fileName);
-		ObjectOutputStream objectStream = new ObjectOutputStream(outputStream);
-		objectStream.writeObject(dataAsJson);
-		objectStream.close();
-		outputStream.close();
-		
-	}
-
 	public static Object readFromFile(String fileName) throws IOException{
 		
 		if(fileName == null ){
@@ -73,6 +79,114 @@ public class Utils {
 		
 		return fromXStreamerStrToObject(receivedData);
 	}
+	
+	
+	/**
+	 * Writes a record (length prefixed bytes) to a stream of records. 
+	 * Doesn't flush 'out'.
+	 */
+	public static void writeRecord(DataOutputStream out, byte[] record) throws IOException
+	{
+		out.writeInt(record.length);
+		out.write(record);
+	}
+	
+	
+	/**
+	 * Reads the records written to a file by {@link #writeRecord(DataOutputStream, byte[])}, one 
+	 * at a time. A record cut short (because the process died while writing it) is ignored.
+	 * @param consumer Invoked with each record read, in order.
+	 */
+	public static void readRecords(File file, Consumer<byte[]> consumer) throws IOException
+	{
+		scanRecords(file, consumer);
+	}
+	
+	
+	/**
+	 * Removes a record cut short (if any) from the end of a file of records, so that records 
+	 * written after it can be read.
+	 */
+	public static void truncateIncompleteRecord(File file) throws IOException
+	{
+		long length = scanRecords(file, null);
+		if (length < file.length())
+		{
+			try (RandomAccessFile f = new RandomAccessFile(file, "rw"))
+			{
+				f.setLength(length);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Writes a file by streaming to a temporary file, which then replaces 'file' at once - so 
+	 * 'file' is never left half written, even if the process dies.
+	 * @param writer Writes the content of the file to the (buffered) stream given.
+	 */
+	public static void writeFileAtomically(File file, IOConsumer<DataOutputStream> writer) 
+			throws IOException
+	{
+		Path tmp = new File(file.getPath() + ".tmp").toPath();
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, 
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					Channels.newOutputStream(channel), FILE_BUFFER_SIZE));
+			writer.accept(out);
+			out.flush();
+			channel.force(true);
+		}
+		try {
+			Files.move(tmp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, 
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	
+	/**
+	 * Like java.util.function.Consumer, but may throw IOException.
+	 */
+	public interface IOConsumer<T>
+	{
+		void accept(T t) throws IOException;
+	}
+	
+	
+	/* Reads the whole records of a file, passing them to 'consumer' (unless it's null).
+	 * Returns the length of the whole records. */
+	private static long scanRecords(File file, Consumer<byte[]> consumer) throws IOException
+	{
+		long $ = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), FILE_BUFFER_SIZE)))
+		{
+			while (true)
+			{
+				byte[] bytes;
+				try {
+					int length = in.readInt();
+					if (length < 0 || length > file.length() - $)
+					{
+						break;
+					}
+					bytes = new byte[length];
+					in.readFully(bytes);
+				} catch (EOFException e) {
+					break;
+				}
+				if (consumer != null)
+				{
+					consumer.accept(bytes);
+				}
+				$ += 4 + bytes.length;
+			}
+		}
+		return $;
+	}
 
 	
 	/**
@@ -82,11 +196,7 @@ public class Utils {
 	 */
 	public static String fromObjectToXStreamerStr(Object data)
 	{
-		if (data == null) 
-			throw new IllegalArgumentException("data cannot be null");
-
-		XStream xstream = new XStream();
-		return xstream.toXML(data);
+		return defaultCodec.encode(data);
 
 	}
 	
@@ -0,0 +1,46 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * A codec encoding objects as XStream XML.
+ * Uses a single XStream object, configured once when the codec is created (configuring XStream 
+ * is expensive, while using a configured one from multiple threads is safe).
+ */
+public class XStreamCodec implements Codec {
+
+	private final XStream xstream = new XStream();
+
+	/**
+	 * @param aliasedTypes Types to be written to the XML by their simple name (instead of their 
+	 * fully qualified name), to keep the XML shorter. Both sides must alias the same types.
+	 */
+	public XStreamCodec(Class<?>... aliasedTypes)
+	{
+		xstream.alias("innerMessage", InnerMessage.class);
+		xstream.alias("frame", Frame.class);
+		for (Class<?> type : aliasedTypes)
+		{
+			xstream.alias(type.getSimpleName(), type);
+		}
+	}
+
+	@Override
+	public String encode(Object data)
+	{
+		if (data == null) 
+			throw new IllegalArgumentException("data cannot be null");
+
+		return xstream.toXML(data);
+	}
+
+	@Override
+	public Object decode(String data)
+	{
+		if (data == null) 
+			throw new IllegalArgumentException("data cannot be null");
+
+		return xstream.fromXML(data);
+	}
+
+}
@@ -0,0 +1,149 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryCodecTest {
+
+	static class Point
+	{
+		Point(long x, String name, List<String> tags, Point next) {
+			this.x = x;
+			this.name = name;
+			this.tags = tags;
+			this.next = next;
+		}
+		final long x;
+		final String name;
+		final List<String> tags;
+		final Point next;
+	}
+
+	BinaryCodec codec;
+
+	@Before
+	public void setUp() {
+		codec = new BinaryCodec().register(BinaryCodec.FIRST_USER_TAG, Point.class,
+				(p, out) -> {
+					out.writeLong(p.x);
+					out.writeString(p.name);
+					out.writeStringList(p.tags);
+					out.writeObject(p.next);
+				},
+				in -> new Point(in.readLong(), in.readString(), in.readStringList(),
+						(Point) in.readObject()));
+	}
+
+	@Test
+	public void encodesAndDecodesRegisteredType() {
+		Point p = new Point(-300, "\u05e9\u05dc\u05d5\u05dd", Arrays.asList("a", "", "b"),
+				new Point(Long.MIN_VALUE, null, null, null));
+
+		Point $ = (Point) codec.decode(codec.encode(p));
+
+		assertEquals(-300, $.x);
+		assertEquals("\u05e9\u05dc\u05d5\u05dd", $.name);
+		assertEquals(Arrays.asList("a", "", "b"), $.tags);
+		assertEquals(Long.MIN_VALUE, $.next.x);
+		assertNull($.next.name);
+		assertNull($.next.tags);
+		assertNull($.next.next);
+	}
+
+	@Test
+	public void encodesInnerMessageWithEncodedData() {
+		InnerMessage m = new InnerMessage(7, null,
+				codec.encode(new Point(1, "p", null, null)), "someone");
+		m.session = -123456789L;
+		m.seq = 3L;
+		m.windowBase = 2L;
+
+		InnerMessage $ = (InnerMessage) codec.decode(codec.encode(m));
+
+		assertEquals(m.messageId, $.messageId);
+		assertNull($.responseTargetId);
+		assertEquals(m.data, $.data);
+		assertEquals(m.fromAddress, $.fromAddress);
+		assertEquals(m.session, $.session);
+		assertEquals(m.seq, $.seq);
+		assertEquals(m.windowBase, $.windowBase);
+	}
+
+	@Test
+	public void encodesInnerMessageWithArbitraryData() {
+		InnerMessage m = new InnerMessage(7, 5L, "<xml>not base64</xml>", "someone");
+
+		InnerMessage $ = (InnerMessage) codec.decode(codec.encode(m));
+
+		assertEquals(m.data, $.data);
+		assertEquals(m.responseTargetId, $.responseTargetId);
+	}
+
+	@Test
+	public void encodesFrame() {
+		InnerMessage m1 = new InnerMessage(7, null, "first", "someone");
+		m1.seq = 3L;
+		InnerMessage m2 = new InnerMessage(8, 2L, "second", "someone");
+		m2.seq = 4L;
+
+		Frame $ = (Frame) codec.decode(codec.encode(new Frame(Arrays.asList(m1, m2))));
+
+		assertEquals(2, $.messages.size());
+		assertEquals(m1.data, $.messages.get(0).data);
+		assertEquals(m1.seq, $.messages.get(0).seq);
+		assertEquals(m2.data, $.messages.get(1).data);
+		assertEquals(m2.responseTargetId, $.messages.get(1).responseTargetId);
+	}
+
+	@Test
+	public void encodingIsMuchShorterThanXml() {
+		Point p = new Point(1, "hello there", null, null);
+		XStreamCodec xml = new XStreamCodec(Point.class);
+
+		String binaryEncoded = codec.encode(message(codec.encode(p)));
+		String xmlEncoded = xml.encode(message(xml.encode(p)));
+
+		assertTrue(binaryEncoded.length() * 2 < xmlEncoded.length());
+	}
+
+	private static InnerMessage message(String data) {
+		InnerMessage $ = new InnerMessage(12, null, data, "alice");
+		$.session = 8765432109876L;
+		$.seq = 3L;
+		$.windowBase = 3L;
+		return $;
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void cantEncodeUnregisteredType() {
+		codec.encode("a string");
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void cantRegisterReservedTag() {
+		codec.register(1, String.class, (s, out) -> {}, in -> "");
+	}
+
+	@Test(expected=InvalidMessage.class)
+	public void decodingGarbageThrows() {
+		codec.decode("not base64!");
+	}
+
+	@Test(expected=InvalidMessage.class)
+	public void decodingTruncatedDataThrows() {
+		String encoded = codec.encode(new Point(1, "a long enough name", null, null));
+		codec.decode(encoded.substring(0, 8));
+	}
+
+	@Test(expected=InvalidMessage.class)
+	public void decodingAHugeSizeThrowsWithoutAllocatingIt() {
+		// a frame (tag 2) of Integer.MAX_VALUE messages, with none of them.
+		codec.decodeFromBytes(new byte[] {2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 7});
+	}
+
+}
@@ -0,0 +1,389 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A persistent key-value store, kept in memory-mapped segment files in a directory.
+ *
+ * Every update (put or remove) is appended as a record to the last segment, so updating a key
+ * doesn't rewrite anything else. An index on the heap maps each key to its latest value in the
+ * segments, while the values themselves are only read from the mapped files. Once most of the
+ * segments hold outdated records, the live values are copied to new segments and the old segments
+ * are deleted.
+ *
+ * Updates are written to the mapped memory, so they survive the process dying (but not
+ * necessarily the machine crashing, unless {@link #force()} is called).
+ *
+ * This class is thread-safe.
+ */
+public class MappedStore {
+
+	// The size of a new segment file (larger records get a segment of their own size).
+	static final int SEGMENT_SIZE = 1 << 22;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+
+	/* A record is: its length (excluding this int), its type (PUT/REMOVE), the key's length, the
+	 * key, and the value (the rest of the record). A zero length marks the end of a segment -
+	 * the length is written last, so a record cut short is never read. */
+	private static final int RECORD_HEADER_SIZE = 4 + 1 + 4;
+
+	/**
+	 * Where the latest value of a key is.
+	 */
+	private static class Location
+	{
+		Location(int segment, int recordOffset, int recordSize, int valueOffset) {
+			this.segment = segment;
+			this.recordOffset = recordOffset;
+			this.recordSize = recordSize;
+			this.valueOffset = valueOffset;
+		}
+
+		final int segment;
+		final int recordOffset;
+		final int recordSize;
+		final int valueOffset;
+
+		int valueLength()
+		{
+			return recordOffset + recordSize - valueOffset;
+		}
+	}
+
+	private final File dir;
+
+	private final List<File> segmentFiles = new ArrayList<>();
+
+	private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+	// The number to give the next segment file (segments are read in the order of their numbers).
+	private int nextSegmentNumber = 0;
+
+	// Where the next record is written in the last segment.
+	private int writePosition;
+
+	private final Map<String, Location> index = new HashMap<>();
+
+	// The total size of the records in the segments, and of the records no longer needed.
+	private long totalBytes = 0;
+	private long deadBytes = 0;
+
+	private boolean closed = false;
+
+
+	/**
+	 * Opens the store kept in a directory (creating it, if it doesn't exist), reading the keys of
+	 * all the values in it.
+	 */
+	public MappedStore(File dir) throws IOException
+	{
+		this.dir = dir;
+		dir.mkdirs();
+
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+		Arrays.sort(files, (f1, f2) -> Integer.compare(segmentNumber(f1), segmentNumber(f2)));
+		for (File file : files)
+		{
+			nextSegmentNumber = segmentNumber(file) + 1;
+			segmentFiles.add(file);
+			segments.add(map(file, file.length()));
+			writePosition = scan(segments.size() - 1);
+		}
+		if (segments.isEmpty())
+		{
+			addSegment(SEGMENT_SIZE);
+		}
+	}
+
+
+	/**
+	 * @return The value of 'key', or null if it has none.
+	 */
+	public synchronized byte[] get(String key)
+	{
+		ensureOpen();
+		Location l = index.get(key);
+		if (l == null)
+		{
+			return null;
+		}
+		ByteBuffer b = segments.get(l.segment).duplicate();
+		b.position(l.valueOffset);
+		byte[] $ = new byte[l.valueLength()];
+		b.get($);
+		return $;
+	}
+
+
+	/**
+	 * Sets the value of 'key'.
+	 */
+	public synchronized void put(String key, byte[] value) throws IOException
+	{
+		ensureOpen();
+		kill(index.put(key, append(PUT, key, value)));
+		compactIfMostlyDead();
+	}
+
+
+	/**
+	 * Removes the value of 'key' (if it has one).
+	 */
+	public synchronized void remove(String key) throws IOException
+	{
+		ensureOpen();
+		Location old = index.remove(key);
+		if (old == null)
+		{
+			return;
+		}
+		kill(old);
+		kill(append(REMOVE, key, new byte[0]));
+		compactIfMostlyDead();
+	}
+
+
+	/**
+	 * @return The keys that have values, in no particular order.
+	 */
+	public synchronized List<String> keys()
+	{
+		ensureOpen();
+		return new ArrayList<>(index.keySet());
+	}
+
+
+	/**
+	 * Writes all updates to the storage device.
+	 */
+	public synchronized void force()
+	{
+		ensureOpen();
+		for (MappedByteBuffer segment : segments)
+		{
+			segment.force();
+		}
+	}
+
+
+	/**
+	 * Closes the store, releasing its mapped segments. Its values remain in the directory, for the 
+	 * next time it is opened.
+	 */
+	public synchronized void close()
+	{
+		if (closed)
+		{
+			return;
+		}
+		force();
+		closed = true;
+		for (MappedByteBuffer segment : segments)
+		{
+			unmap(segment);
+		}
+		segments.clear();
+		segmentFiles.clear();
+		index.clear();
+	}
+
+
+	private void ensureOpen()
+	{
+		if (closed)
+		{
+			throw new InvalidOperation();
+		}
+	}
+
+
+	// Appends a record to the last segment (or to a new one, if it doesn't fit).
+	private Location append(byte type, String key, byte[] value) throws IOException
+	{
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		int recordSize = RECORD_HEADER_SIZE + keyBytes.length + value.length;
+
+		// a zero int must fit after the record, to mark the end of the segment.
+		if (writePosition + recordSize + 4 > segments.get(segments.size() - 1).capacity())
+		{
+			addSegment(Math.max(SEGMENT_SIZE, recordSize + 4));
+		}
+		int segment = segments.size() - 1;
+		ByteBuffer b = segments.get(segment).duplicate();
+		int recordOffset = writePosition;
+
+		b.position(recordOffset + 4);
+		b.put(type);
+		b.putInt(keyBytes.length);
+		b.put(keyBytes);
+		int valueOffset = b.position();
+		b.put(value);
+		b.putInt(recordOffset, recordSize - 4);
+
+		writePosition += recordSize;
+		totalBytes += recordSize;
+		return new Location(segment, recordOffset, recordSize, valueOffset);
+	}
+
+
+	/* Reads the records of a segment into the index.
+	 * Returns the position after the last record. */
+	private int scan(int segment)
+	{
+		ByteBuffer b = segments.get(segment).duplicate();
+		int position = 0;
+		while (position + 4 <= b.capacity())
+		{
+			int length = b.getInt(position);
+			if (length < RECORD_HEADER_SIZE - 4 || position + 4 + length > b.capacity())
+			{
+				break;
+			}
+			b.position(position + 4);
+			byte type = b.get();
+			byte[] keyBytes = new byte[b.getInt()];
+			b.get(keyBytes);
+			String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+			Location l = new Location(segment, position, length + 4, b.position());
+			totalBytes += l.recordSize;
+			if (type == PUT)
+			{
+				kill(index.put(key, l));
+			} else
+			{
+				kill(index.remove(key));
+				kill(l);
+			}
+			position += l.recordSize;
+		}
+		return position;
+	}
+
+
+	// Marks a record (if not null) as no longer needed.
+	private void kill(Location l)
+	{
+		if (l != null)
+		{
+			deadBytes += l.recordSize;
+		}
+	}
+
+
+	/* Copies the live values to new segments, and deletes the old ones, once most of the records
+	 * are dead. If the process dies meanwhile, the store is still correct: the old segments are
+	 * read first, and the copies of their live values later. */
+	private void compactIfMostlyDead() throws IOException
+	{
+		if (deadBytes * 2 < totalBytes || totalBytes < SEGMENT_SIZE)
+		{
+			return;
+		}
+		List<MappedByteBuffer> oldSegments = new ArrayList<>(segments);
+		List<File> oldFiles = new ArrayList<>(segmentFiles);
+		Map<String, Location> oldIndex = new HashMap<>(index);
+
+		segments.clear();
+		segmentFiles.clear();
+		index.clear();
+		totalBytes = 0;
+		deadBytes = 0;
+		addSegment(SEGMENT_SIZE);
+
+		for (Map.Entry<String, Location> e : oldIndex.entrySet())
+		{
+			Location l = e.getValue();
+			ByteBuffer b = oldSegments.get(l.segment).duplicate();
+			b.position(l.valueOffset);
+			byte[] value = new byte[l.valueLength()];
+			b.get(value);
+			index.put(e.getKey(), append(PUT, e.getKey(), value));
+		}
+		for (MappedByteBuffer segment : segments)
+		{
+			segment.force();
+		}
+		for (MappedByteBuffer segment : oldSegments)
+		{
+			unmap(segment);
+		}
+		for (File file : oldFiles)
+		{
+			file.delete();
+		}
+	}
+
+
+	private void addSegment(int size) throws IOException
+	{
+		File file = new File(dir, nextSegmentNumber++ + SEGMENT_SUFFIX);
+		segmentFiles.add(file);
+		segments.add(map(file, size));
+		writePosition = 0;
+	}
+
+
+	/* Releases the mapping of a segment now, rather than whenever the buffer is garbage collected
+	 * (the segments are too big to keep mapped until then). The segment must not be used afterwards.
+	 * Java has no public API for it, so if unmapping fails it is still left to the collector. */
+	private static void unmap(MappedByteBuffer segment)
+	{
+		try {
+			try {
+				// Java 9 and later.
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+				Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+				theUnsafe.setAccessible(true);
+				invokeCleaner.invoke(theUnsafe.get(null), segment);
+			} catch (NoSuchMethodException e) {
+				// Java 8.
+				Method cleaner = segment.getClass().getMethod("cleaner");
+				cleaner.setAccessible(true);
+				Object $ = cleaner.invoke(segment);
+				$.getClass().getMethod("clean").invoke($);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// left to the garbage collector.
+		}
+	}
+
+
+	private static MappedByteBuffer map(File file, long size) throws IOException
+	{
+		try (RandomAccessFile f = new RandomAccessFile(file, "rw"))
+		{
+			if (f.length() < size)
+			{
+				f.setLength(size);
+			}
+			return f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+	}
+
+
+	private static int segmentNumber(File segment)
+	{
+		String name = segment.getName();
+		return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+}
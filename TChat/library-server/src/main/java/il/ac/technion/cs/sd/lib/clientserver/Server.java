@@ -2,11 +2,22 @@ package il.ac.technion.cs.sd.lib.clientserver;
 
 import il.ac.technion.cs.sd.msg.MessengerException;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 import org.apache.commons.io.FileUtils;
 
@@ -28,11 +39,40 @@ import org.apache.commons.io.FileUtils;
 public class Server {
 
 	private ReliableHost _reliableHost;
+	private Codec _codec;
+	
+	// filename -> the open stream appending records to it (see appendObjectToFile).
+	private final Map<String, DataOutputStream> _recordStreams = new HashMap<>();
+	
+	// name -> the open store (see openStore).
+	private final Map<String, MappedStore> _stores = new HashMap<>();
 	
 	
 	public String getAddress() {
 		return _reliableHost.getAddress();
 	}
+	
+	
+	/**
+	 * Sets how long a message sent waits for more messages to the same client to be sent with it 
+	 * in a single frame, in milisec. The default, 0, only batches messages sent while a previous 
+	 * frame to the client is being transmitted.
+	 */
+	public void setLinger(long millis) {
+		_reliableHost.setLinger(millis);
+	}
+	
+	
+	/**
+	 * Sets the number of threads the consumer is called on, from the next start. The messages of 
+	 * each client are consumed one at a time, in the order they were sent, while messages of 
+	 * different clients may be consumed at the same time. The default, 0, consumes all messages on 
+	 * the listen loop, one at a time.
+	 * @throws InvalidOperation If the server is running.
+	 */
+	public void setDispatchWorkers(int workers) {
+		_reliableHost.setDispatchWorkers(workers);
+	}
 
 
 	/**
@@ -43,7 +83,23 @@ public class Server {
 	 */
 	public Server(String address)
 	{
-		_reliableHost = new ReliableHost(address);
+		this(address, Utils.getDefaultCodec());
+	}
+	
+	
+	/**
+	 * Creates a new server, that encodes the messages it sends/receives with a given codec.
+	 * Persistent data (see {@link #saveObjectToFile(String, Object)} and the other file methods) is 
+	 * saved with the same codec, so it can only be read by a server with the same kind of codec.
+	 * A call to {@link #start(BiConsumer, Type)} must be made before sending/receiving any 
+	 * messages with this server.
+	 * @param address - the address of the new server. 
+	 * @param codec - the codec to encode messages with. Clients must use the same kind of codec.
+	 */
+	public Server(String address, Codec codec)
+	{
+		_codec = codec;
+		_reliableHost = new ReliableHost(address, codec);
 	}
 
 
@@ -56,8 +112,9 @@ public class Server {
 	 * From within the callback function, you can synchronically send a response back to the client that invoked it
 	 * via {@link #send(String, Object, boolean)} (the client is blocking until a response
 	 * from the server arrives). 
-	 * While the consumer's callback is running - the listen loop is frozen, so the code in the 
-	 * callback shouldn't wait for a new messages to arrive at the server. 
+	 * While the consumer's callback is running - the listen loop is frozen (or, with dispatch
+	 * workers, the messages of the same client wait), so the code in the callback shouldn't wait 
+	 * for a new messages to arrive at the server. 
 	 * @param dataType The type of the object sent by the client in each message
 	 * (i.e., the type of the object passed to the consumer's callback function).
 	 * e.g.:
@@ -72,7 +129,7 @@ public class Server {
 		
 		try {
 			_reliableHost.start((fromAddress, data) -> {
-				consumer.accept(Utils.fromXStreamerStrToObject(data), fromAddress);
+				consumer.accept(_codec.decode(data), fromAddress);
 			});
 		} catch (MessengerException e) {
 			System.out.println(e.getMessage());
@@ -95,6 +152,29 @@ public class Server {
 	public void stop()
 	{
 		_reliableHost.stop();
+		closePersistentResources();
+	}
+	
+	
+	/**
+	 * Opens a persistent key-value store of this server (see {@link MappedStore}), creating it if 
+	 * it doesn't exist. The store remains open (and is returned by further calls) until the server
+	 * is stopped or its persistent data is cleared.
+	 * @param name The name of the store, without path.
+	 */
+	public MappedStore openStore(String name)
+	{
+		MappedStore $ = _stores.get(name);
+		if ($ == null)
+		{
+			try {
+				$ = new MappedStore(new File(getServerPersistentDir(), name));
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to open store: " + e.getMessage());
+			}
+			_stores.put(name, $);
+		}
+		return $;
 	}
 	
 
@@ -110,9 +190,22 @@ public class Server {
 	 * @throws InvalidOperation Bad clientAddress address etc..
 	 */
 	public void send(String clientAddress, Object data, boolean isResponse)
+	{
+		sendAsync(clientAddress, data, isResponse);
+	}
+	
+	
+	/**
+	 * Sends a message to a client, without waiting for it to be delivered.
+	 * The parameters are the same as of {@link #send(String, Object, boolean)}.
+	 * @return A future completed once the client received the message (or completed exceptionally
+	 * with CommunicationFailure if the server is stopped first).
+	 * @throws InvalidOperation Bad clientAddress address etc..
+	 */
+	public CompletableFuture<Void> sendAsync(String clientAddress, Object data, boolean isResponse)
 	{
 		try {
-			_reliableHost.send(clientAddress, Utils.fromObjectToXStreamerStr(data), isResponse);
+			return _reliableHost.send(clientAddress, _codec.encode(data), isResponse);
 		} catch (MessengerException e) {
 			throw new CommunicationFailure(e.getMessage());
 		}
@@ -124,6 +217,7 @@ public class Server {
 	 */
 	public void clearPersistentData()
 	{
+		closePersistentResources();
 		File persistentDataDir = getServerPersistentDir();
 		if (!persistentDataDir.exists())
 		{
@@ -141,6 +235,9 @@ public class Server {
 	
 	/**
 	 * Saves a an object to persistent memory (file).
+	 * The object is encoded with the server's codec, and streamed to the file as a single record, 
+	 * which replaces the file at once (if the process dies while saving, the previous content of 
+	 * the file remains).
 	 * @param filename The filename, without path, of the file to save 'data' into.
 	 * This file will hold a single object ('data'). Previous content, if the file already exists,
 	 * will be lost.
@@ -148,20 +245,44 @@ public class Server {
 	 */
 	public void saveObjectToFile(String filename, Object data)
 	{
-		File allServersDir = getPesistentDirOfAllServers();
-		if(!allServersDir.exists()){
-			allServersDir.mkdir();
-		}
-		File dir = getServerPersistentDir();
-		if(!dir.exists()){
-			dir.mkdir();
+		if (data == null)
+		{
+			throw new IllegalArgumentException("null parameters for write to file");
 		}
+		getServerPersistentDir().mkdirs();
 		try {
-			Utils.writeToFile(data, getServerPersistentDir().getAbsolutePath() + "/" +filename);
+			Utils.writeFileAtomically(new File(getServerPersistentDir(), filename), 
+					out -> Utils.writeRecord(out, _codec.encodeToBytes(data)));
 		} catch (IOException e) {			
 			throw new RuntimeException("Failed to write file: " + e.getMessage());
 		}
 	}
+	
+	
+	/**
+	 * Saves a sequence of objects to persistent memory (file), streaming them one by one - so 
+	 * the whole sequence never has to be in memory. Objects are encoded with the server's codec
+	 * (as compact binary records when it is a BinaryCodec).
+	 * The file is replaced at once: if the process dies while saving, the previous content of the 
+	 * file remains.
+	 * @param filename The filename, without path, of the file to save the objects into. Previous 
+	 * content, if the file already exists, will be lost.
+	 * @param objects The objects to be saved to the file.
+	 */
+	public void saveObjectsToFile(String filename, Iterator<?> objects)
+	{
+		getServerPersistentDir().mkdirs();
+		try {
+			Utils.writeFileAtomically(new File(getServerPersistentDir(), filename), out -> {
+				while (objects.hasNext())
+				{
+					Utils.writeRecord(out, _codec.encodeToBytes(objects.next()));
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write file: " + e.getMessage());
+		}
+	}
 	 
 	
 	/**
@@ -172,16 +293,132 @@ public class Server {
 	 */
 	public Optional<Object> readObjectFromFile(String filename)
 	{
-		Optional<Object> $;
-		
+		List<Object> $ = new ArrayList<>(1);
 		try {
-			$ = Optional.of(Utils.readFromFile(getServerPersistentDir().getAbsolutePath()+ "/"  + filename));
+			if (!readObjectsFromFile(filename, $::add))
+			{
+				return Optional.empty();
+			}
+		} catch (RuntimeException e) {
+			throw new BadFileContent();
+		}
+		if ($.size() != 1)
+		{
+			throw new BadFileContent();
+		}
+		return Optional.of($.get(0));
+	}
+	
+	
+	/**
+	 * Appends an object to a file of records, without rewriting the objects already in it.
+	 * The record is handed to the OS before this method returns, so it survives the process dying.
+	 * Objects are encoded with the server's codec.
+	 * @param filename The filename, without path, of the file of records.
+	 * @param record The object to append to the file.
+	 */
+	public void appendObjectToFile(String filename, Object record)
+	{
+		try {
+			DataOutputStream out = _recordStreams.get(filename);
+			if (out == null)
+			{
+				out = openRecordStream(filename);
+				_recordStreams.put(filename, out);
+			}
+			Utils.writeRecord(out, _codec.encodeToBytes(record));
+			out.flush();
 		} catch (IOException e) {
-			$=Optional.empty();
+			throw new RuntimeException("Failed to write file: " + e.getMessage());
 		}
+	}
+	
+	
+	/**
+	 * Reads all objects appended to a file of records (see {@link #appendObjectToFile(String, Object)})
+	 * or saved to it (see {@link #saveObjectsToFile(String, Iterator)}).
+	 * @param filename The filename, without path, of the file of records.
+	 * @return The objects read, in order (empty if the file doesn't exist).
+	 */
+	public List<Object> readObjectsFromFile(String filename)
+	{
+		List<Object> $ = new ArrayList<>();
+		readObjectsFromFile(filename, $::add);
 		return $;
 	}
 	
+	
+	/**
+	 * Reads the objects of a file of records one by one, without keeping them all in memory.
+	 * @param filename The filename, without path, of the file of records.
+	 * @param consumer Invoked with each object read, in order.
+	 * @return false iff the file doesn't exist.
+	 */
+	public boolean readObjectsFromFile(String filename, Consumer<Object> consumer)
+	{
+		File file = new File(getServerPersistentDir(), filename);
+		if (!file.exists())
+		{
+			return false;
+		}
+		try {
+			Utils.readRecords(file, record -> consumer.accept(_codec.decodeFromBytes(record)));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read file: " + e.getMessage());
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Deletes a file of persistent data (if it exists).
+	 * @param filename The filename, without path.
+	 */
+	public void deleteFile(String filename)
+	{
+		DataOutputStream out = _recordStreams.remove(filename);
+		try {
+			if (out != null)
+			{
+				out.close();
+			}
+			Files.deleteIfExists(new File(getServerPersistentDir(), filename).toPath());
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to delete file: " + e.getMessage());
+		}
+	}
+	
+	
+	private DataOutputStream openRecordStream(String filename) throws IOException
+	{
+		getServerPersistentDir().mkdirs();
+		File file = new File(getServerPersistentDir(), filename);
+		if (file.exists())
+		{
+			Utils.truncateIncompleteRecord(file);
+		}
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	}
+	
+	
+	private void closePersistentResources()
+	{
+		for (MappedStore store : _stores.values())
+		{
+			store.close();
+		}
+		_stores.clear();
+		for (DataOutputStream out : _recordStreams.values())
+		{
+			try {
+				out.close();
+			} catch (IOException e) {
+				// nothing more to write to it anyway.
+			}
+		}
+		_recordStreams.clear();
+	}
+	
 	// returns the directory holding the persistent files of the server.
 	private File getServerPersistentDir() {
 		return new File(getPesistentDirOfAllServers(), getServerPersistentDirName());
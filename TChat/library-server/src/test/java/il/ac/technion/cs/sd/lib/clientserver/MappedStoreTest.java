@@ -0,0 +1,84 @@
+package il.ac.technion.cs.sd.lib.clientserver;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedStoreTest {
+
+	private File dir;
+	private MappedStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("store").toFile();
+		store = new MappedStore(dir);
+	}
+
+	@After
+	public void teardown() throws Exception {
+		store.close();
+		FileUtils.deleteDirectory(dir);
+	}
+
+	@Test
+	public void getReturnsTheLastValuePut() throws Exception {
+		assertNull(store.get("a"));
+		store.put("a", new byte[] {1});
+		store.put("b", new byte[] {2, 2});
+		store.put("a", new byte[] {3, 3, 3});
+
+		assertArrayEquals(new byte[] {3, 3, 3}, store.get("a"));
+		assertArrayEquals(new byte[] {2, 2}, store.get("b"));
+	}
+
+	@Test
+	public void removedKeysHaveNoValue() throws Exception {
+		store.put("a", new byte[] {1});
+		store.remove("a");
+
+		assertNull(store.get("a"));
+		assertTrue(store.keys().isEmpty());
+	}
+
+	@Test
+	public void valuesRemainAfterReopening() throws Exception {
+		store.put("a", new byte[] {1});
+		store.put("b", new byte[] {2});
+		store.put("a", new byte[] {3});
+		store.remove("b");
+		store.close();
+
+		store = new MappedStore(dir);
+
+		assertEquals(Arrays.asList("a"), store.keys());
+		assertArrayEquals(new byte[] {3}, store.get("a"));
+		store.put("c", new byte[] {4});
+		assertArrayEquals(new byte[] {4}, store.get("c"));
+	}
+
+	@Test
+	public void outdatedValuesAreEventuallyDeleted() throws Exception {
+		byte[] value = new byte[MappedStore.SEGMENT_SIZE / 8];
+		for (int i = 0; i < 64; i++) {
+			value[0] = (byte) i;
+			store.put("a", value);
+		}
+		store.put("b", new byte[] {1});
+
+		assertTrue(dir.listFiles().length <= 2);
+		assertEquals(63, store.get("a")[0]);
+		store.close();
+		store = new MappedStore(dir);
+		assertEquals(63, store.get("a")[0]);
+		assertArrayEquals(new byte[] {1}, store.get("b"));
+	}
+
+}
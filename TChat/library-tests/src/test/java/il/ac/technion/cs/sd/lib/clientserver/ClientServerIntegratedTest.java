@@ -2,13 +2,24 @@ package il.ac.technion.cs.sd.lib.clientserver;
 
 import static org.junit.Assert.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
@@ -181,6 +192,114 @@ public class ClientServerIntegratedTest {
 	}
 
 
+	@Test
+	public void appendAndThenReadFromNewServerWithSameName() {
+
+		server1.start(biConsumer1);
+		server1.appendObjectToFile("records", pojo1_a);
+		server1.appendObjectToFile("records", pojo2_a);
+		server1.appendObjectToFile("records", pojo1_b);
+		server1.stop();
+
+		Server s = new Server(server1.getAddress());
+		assertEquals(Arrays.asList(pojo1_a, pojo2_a, pojo1_b), s.readObjectsFromFile("records"));
+
+		// appending continues after the records already in the file.
+		s.appendObjectToFile("records", pojo1_a);
+		assertEquals(Arrays.asList(pojo1_a, pojo2_a, pojo1_b, pojo1_a), 
+				s.readObjectsFromFile("records"));
+	}
+
+
+	@Test
+	public void saveObjectsReplacesThePreviousContent() {
+
+		server1.appendObjectToFile("records", pojo2_a);
+		server1.saveObjectsToFile("records", Arrays.asList(pojo1_a, pojo1_b).iterator());
+		assertEquals(Arrays.asList(pojo1_a, pojo1_b), server1.readObjectsFromFile("records"));
+
+		server1.deleteFile("records");
+		assertTrue(server1.readObjectsFromFile("records").isEmpty());
+		assertFalse(server1.readObjectsFromFile("records", o -> {}));
+	}
+
+
+	@Test
+	public void recordCutShortIsIgnoredAndThenTruncated() throws IOException {
+
+		File file = File.createTempFile("records", null);
+		try {
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file)))
+			{
+				Utils.writeRecord(out, new byte[] {1, 2, 3});
+				Utils.writeRecord(out, new byte[] {4});
+				// the process died while writing the third record.
+				out.writeInt(10);
+				out.write(new byte[] {5, 6});
+			}
+			List<byte[]> $ = new ArrayList<>();
+			Utils.readRecords(file, $::add);
+			assertEquals(2, $.size());
+			assertArrayEquals(new byte[] {1, 2, 3}, $.get(0));
+			assertArrayEquals(new byte[] {4}, $.get(1));
+
+			Utils.truncateIncompleteRecord(file);
+			try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true)))
+			{
+				Utils.writeRecord(out, new byte[] {7, 8});
+			}
+			$.clear();
+			Utils.readRecords(file, $::add);
+			assertEquals(3, $.size());
+			assertArrayEquals(new byte[] {7, 8}, $.get(2));
+		} finally {
+			file.delete();
+		}
+	}
+
+
+	@Test
+	public void failedAtomicWriteLeavesThePreviousContent() throws IOException {
+
+		File file = File.createTempFile("atomic", null);
+		try {
+			Utils.writeFileAtomically(file, out -> out.writeInt(1));
+			try {
+				Utils.writeFileAtomically(file, out -> {
+					out.writeInt(2);
+					throw new IOException("the writer failed");
+				});
+				fail();
+			} catch (IOException e) {
+				// expected.
+			}
+			assertEquals(4, file.length());
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+			{
+				assertEquals(1, in.readInt());
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+
+	@Test
+	public void storeKeepsItsValuesAfterClosed() throws IOException {
+
+		MappedStore store = server1.openStore("store");
+		store.put("a", new byte[] {1});
+		store.put("b", new byte[] {2});
+		store.remove("a");
+		store.close();
+
+		store = new Server(server1.getAddress()).openStore("store");
+		assertNull(store.get("a"));
+		assertArrayEquals(new byte[] {2}, store.get("b"));
+		store.close();
+	}
+
+
 	@Test(timeout=5000)
 	public void clientSendsToServerMessage() throws InterruptedException {
 
@@ -314,6 +433,157 @@ public class ClientServerIntegratedTest {
 
 
 
+	@Test(timeout=5000)
+	public void clientWaitsForManyResponsesAtOnce() throws Exception {
+		clients.get(0).start(server1.getAddress(), consumer1);
+		server1.start((x, from) ->
+		{
+			POJO1 p = (POJO1) x;
+			server1.send(from, new POJO1(p.i * 2, p.str), true);
+		});
+
+		List<CompletableFuture<Object>> responses = new LinkedList<>();
+		for (int i=0; i<20; i++)
+		{
+			responses.add(clients.get(0).requestAsync(new POJO1(i, "req")));
+		}
+
+		for (int i=0; i<20; i++)
+		{
+			assertEquals(responses.get(i).get(), new POJO1(i * 2, "req"));
+		}
+
+		clients.get(0).stopListenLoop();
+		server1.stop();
+	}
+
+
+	@Test(timeout=5000)
+	public void sendAsyncCompletesOnceDelivered() throws Exception {
+		clients.get(0).start(server1.getAddress(), consumer1);
+		server1.start(biConsumer1);
+
+		clients.get(0).sendAsync(pojo1_a).get();
+		assertEquals(biConsumer1_bq.take().first, pojo1_a);
+
+		server1.sendAsync(clients.get(0).getAddress(), pojo1_b, false).get();
+		assertEquals(consumer1_bq.take(), pojo1_b);
+
+		clients.get(0).stopListenLoop();
+		server1.stop();
+	}
+
+
+	@Test (timeout=20000)
+	public void lingeredMessagesArriveInOrder() throws Exception {
+		clients.get(0).start(server1.getAddress(), consumer1);
+		server1.start(biConsumer1);
+		server1.setLinger(5);
+
+		List<CompletableFuture<Void>> deliveries = new LinkedList<>();
+		for (int i=0; i<100; i++)
+		{
+			deliveries.add(server1.sendAsync(clients.get(0).getAddress(), new POJO1(i, "msg"), false));
+		}
+		for (int i=0; i<100; i++)
+		{
+			assertEquals(new POJO1(i, "msg"), consumer1_bq.take());
+		}
+		CompletableFuture.allOf(deliveries.toArray(new CompletableFuture<?>[0])).get();
+
+		clients.get(0).stopListenLoop();
+		server1.stop();
+	}
+
+
+	@Test (timeout=10000)
+	public void dispatchWorkersConsumeDifferentClientsConcurrently() throws Exception {
+		final int workers = 16;
+		server1.setDispatchWorkers(workers);
+
+		// two clients whose messages are consumed by different workers.
+		Client a = clients.get(0);
+		Optional<Client> other = clients.stream().filter(c ->
+				(c.getAddress().hashCode() & Integer.MAX_VALUE) % workers !=
+				(a.getAddress().hashCode() & Integer.MAX_VALUE) % workers).findFirst();
+		assertTrue(other.isPresent());
+		Client b = other.get();
+
+		CountDownLatch bConsumed = new CountDownLatch(1);
+		server1.start((x, from) ->
+		{
+			POJO1 p = (POJO1) x;
+			if (from.equals(b.getAddress()))
+			{
+				// recorded before a's worker is let go, so it's recorded first.
+				biConsumer1_bq.add(new Pair<>(p, from));
+				server1.send(from, p, true);
+				bConsumed.countDown();
+				return;
+			}
+			if (p.i == 0)
+			{
+				// blocks a's worker, but not b's.
+				try {
+					assertTrue(bConsumed.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			biConsumer1_bq.add(new Pair<>(p, from));
+		});
+		a.start(server1.getAddress(), consumer1);
+		b.start(server1.getAddress(), consumer2);
+
+		for (int i=0; i<10; i++)
+		{
+			a.send(new POJO1(i, "a"));
+		}
+		assertEquals(new POJO1(7, "b"), b.sendAndBlockUntilResponseArrives(new POJO1(7, "b")));
+
+		assertEquals(b.getAddress(), biConsumer1_bq.take().second);
+		for (int i=0; i<10; i++)
+		{
+			assertEquals(new POJO1(i, "a"), biConsumer1_bq.take().first);
+		}
+
+		a.stopListenLoop();
+		b.stopListenLoop();
+		server1.stop();
+	}
+
+
+	@Test(timeout=20000)
+	public void manyClientsCanShareTheirListenThreads() throws Exception {
+		final int clientsNum = 50;
+		server1.start((x, from) -> server1.send(from, x, false));
+
+		List<Client> many = createClients(clientsNum);
+		for (Client c : many)
+		{
+			c.setSharedListening(true);
+			c.start(server1.getAddress(), consumer1);
+		}
+		for (Client c : many)
+		{
+			c.send(new POJO1(1, c.getAddress()));
+		}
+
+		for (int i=0; i<clientsNum; i++)
+		{
+			assertNotNull(consumer1_bq.poll(10, TimeUnit.SECONDS));
+		}
+		assertFalse(Thread.getAllStackTraces().keySet().stream().anyMatch(t ->
+				t.getName().equals("ReliableHost-listen-" + many.get(0).getAddress())));
+
+		for (Client c : many)
+		{
+			c.stopListenLoop();
+		}
+		server1.stop();
+	}
+
+
 	@Test (timeout=100000)
 	public void serverRandomlyComunicatesWithTwoClients() throws InterruptedException {
 